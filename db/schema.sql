@@ -1,5 +1,6 @@
-CREATE TABLE user_chat (owner VARCHAR (30) NOT NULL, chat_id_from BIGINT NOT NULL, chat_id_to BIGINT NOT NULL, chat_name varchar (200), PRIMARY KEY (owner, chat_id_from, chat_id_to));
-CREATE TABLE forwarded_message (msg_id BIGINT NOT NULL, chat_id BIGINT NOT NULL, PRIMARY KEY (msg_id, chat_id));
+CREATE TABLE user_chat (owner VARCHAR (30) NOT NULL, chat_id_from BIGINT NOT NULL, chat_id_to BIGINT NOT NULL, chat_name varchar (200), batch INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (owner, chat_id_from, chat_id_to));
+-- forwarded messages are stored in daily partitions forwarded_message_yyyyMMdd, created by application:
+-- CREATE TABLE forwarded_message_20190914 (source_chat_id BIGINT NOT NULL, msg_id BIGINT NOT NULL, chat_id BIGINT NOT NULL, forwarded_at BIGINT NOT NULL, PRIMARY KEY (source_chat_id, msg_id, chat_id));
 CREATE TABLE auth_codes (phone VARCHAR (30) NOT NULL, password VARCHAR (1000), code VARCHAR (10), PRIMARY KEY (phone));
 CREATE TABLE possible_destination (chat_id BIGINT PRIMARY KEY, chat_name VARCHAR(100));
 CREATE TABLE user_session(
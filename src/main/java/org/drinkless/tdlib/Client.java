@@ -6,10 +6,19 @@
 //
 package org.drinkless.tdlib;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -69,13 +78,54 @@ public final class Client implements Runnable {
             }
 
             long queryId = currentQueryId.incrementAndGet();
-            handlers.put(queryId, new Handler(resultHandler, exceptionHandler));
+            // handler object is allocated only when there is something besides the result handler to keep
+            handlers.put(queryId, resultHandler == null ? NO_HANDLER : exceptionHandler == null ? resultHandler : new Handler(resultHandler, exceptionHandler));
             nativeClientSend(nativeClientId, queryId, query);
         } finally {
             readLock.unlock();
         }
     }
 
+    /**
+     * Sends a request to the TDLib and returns its result as a future, so requests can be composed instead of nesting callbacks.
+     * Query which is not answered in time is removed from the client, answer coming later is ignored.
+     *
+     * @param query   Object representing a query to the TDLib.
+     * @param timeout Time to wait for the answer.
+     * @return future completed with result of the query, with TdlibException if result is TdApi.Error
+     * and with TimeoutException if there is no result in time.
+     * @throws NullPointerException if query is null.
+     */
+    public CompletableFuture<TdApi.Object> sendAsync(TdApi.Function query, Duration timeout) {
+        if (query == null) {
+            throw new NullPointerException("query is null");
+        }
+        CompletableFuture<TdApi.Object> future = new CompletableFuture<TdApi.Object>();
+
+        readLock.lock();
+        try {
+            if (isClientDestroyed) {
+                future.completeExceptionally(new TdlibException(new TdApi.Error(500, "Client is closed")));
+                return future;
+            }
+
+            long queryId = currentQueryId.incrementAndGet();
+            timedQueries.incrementAndGet();
+            handlers.put(queryId, new Handler(future, System.nanoTime() + timeout.toNanos()));
+            nativeClientSend(nativeClientId, queryId, query);
+        } finally {
+            readLock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * @return number of queries sent to the TDLib and not answered yet
+     */
+    public int getPendingQueries() {
+        return handlers.size();
+    }
+
     /**
      * Sends a request to the TDLib with an empty ExceptionHandler.
      *
@@ -112,7 +162,7 @@ public final class Client implements Runnable {
      *                         exception thrown from updatesHandler, if it is null, defaultExceptionHandler will be invoked.
      */
     public void setUpdatesHandler(ResultHandler updatesHandler, ExceptionHandler exceptionHandler) {
-        handlers.put(0L, new Handler(updatesHandler, exceptionHandler));
+        this.updatesHandler = new Handler(updatesHandler, exceptionHandler);
     }
 
     /**
@@ -139,8 +189,28 @@ public final class Client implements Runnable {
      */
     @Override
     public void run() {
+        long[] eventIds = new long[MAX_EVENTS];
+        TdApi.Object[] events = new TdApi.Object[MAX_EVENTS];
         while (!stopFlag) {
-            receiveQueries(300.0 /*seconds*/);
+            if (dispatcher != null && dispatcher.isFull()) {
+                // waits outside of receive lock, so handler closing this client is not blocked
+                try {
+                    dispatcher.awaitCapacity(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            receiveLock.lock();
+            try {
+                if (isNativeClientDestroyed) {
+                    return;
+                }
+                receiveQueries(300.0 /*seconds*/, eventIds, events);
+            } finally {
+                receiveLock.unlock();
+            }
         }
     }
 
@@ -153,7 +223,17 @@ public final class Client implements Runnable {
      * @return created Client
      */
     public static Client create(ResultHandler updatesHandler, ExceptionHandler updatesExceptionHandler, ExceptionHandler defaultExceptionHandler) {
-        Client client = new Client(updatesHandler, updatesExceptionHandler, defaultExceptionHandler);
+        return create(updatesHandler, updatesExceptionHandler, defaultExceptionHandler, null);
+    }
+
+    /**
+     * Creates new Client which runs result handlers with dispatcher, TDLib thread only receives results.
+     *
+     * @param dispatcher Dispatcher of this client. If it is null, handlers are called by TDLib thread.
+     * @return created Client
+     */
+    public static Client create(ResultHandler updatesHandler, ExceptionHandler updatesExceptionHandler, ExceptionHandler defaultExceptionHandler, Dispatcher dispatcher) {
+        Client client = new Client(updatesHandler, updatesExceptionHandler, defaultExceptionHandler, dispatcher);
         new Thread(client, "TDLib thread").start();
         return client;
     }
@@ -162,24 +242,60 @@ public final class Client implements Runnable {
      * Closes Client.
      */
     public void close() {
+        close(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes Client, waiting for the TDLib to close it not longer than the timeout.
+     * New queries fail right away, while already sent queries get their results or time out.
+     *
+     * @param timeout Time to wait for the client to close.
+     * @param unit    Unit of timeout.
+     * @return true if the client is closed and destroyed, false if it is not closed in time.
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        // far away deadline is kept far enough from overflow
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
         writeLock.lock();
         try {
-            if (isClientDestroyed) {
-                return;
+            if (!isClientDestroyed) {
+                if (!stopFlag) {
+                    send(new TdApi.Close(), null);
+                }
+                isClientDestroyed = true;
             }
-            if (!stopFlag) {
-                send(new TdApi.Close(), null);
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            if (!closed.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
             }
-            isClientDestroyed = true;
-            while (!stopFlag) {
-                Thread.yield();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        receiveLock.lock();
+        try {
+            if (isNativeClientDestroyed) {
+                return true;
             }
-            while (handlers.size() != 1) {
-                receiveQueries(300.0);
+            long[] eventIds = new long[MAX_EVENTS];
+            TdApi.Object[] events = new TdApi.Object[MAX_EVENTS];
+            // sweeper keeps failing expired queries, so the drain does not wait for them till the deadline
+            while (handlers.size() != 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                receiveQueries(Math.min(remaining / 1e9, 300.0), eventIds, events);
             }
+            isNativeClientDestroyed = true;
+            sweeper.cancel(false);
             destroyNativeClient(nativeClientId);
+            return true;
         } finally {
-            writeLock.unlock();
+            receiveLock.unlock();
         }
     }
 
@@ -188,32 +304,82 @@ public final class Client implements Runnable {
     private final Lock writeLock = readWriteLock.writeLock();
 
     private volatile boolean stopFlag = false;
+    // released when the TDLib reports that the client is closed
+    private final CountDownLatch closed = new CountDownLatch(1);
     private volatile boolean isClientDestroyed = false;
+    // native client is polled by one thread at a time: own thread or poller of ClientManager, and close
+    private final Lock receiveLock = new ReentrantLock();
+    static final int POLL_SKIPPED = -2;
+    private volatile boolean isNativeClientDestroyed = false;
     private final long nativeClientId;
 
-    private final ConcurrentHashMap<Long, Handler> handlers = new ConcurrentHashMap<Long, Handler>();
+    // ResultHandler, or Handler if there is exception handler, future or no result handler
+    private final QueryTable<Object> handlers = new QueryTable<Object>(QUERY_TABLE_CAPACITY);
+    private volatile Handler updatesHandler;
+    private final Dispatcher dispatcher;
     private final AtomicLong currentQueryId = new AtomicLong();
+    private final AtomicInteger timedQueries = new AtomicInteger();
+    private final ScheduledFuture<?> sweeper;
+
+    private static final int QUERY_TABLE_CAPACITY = 1024;
+    private static final Handler NO_HANDLER = new Handler(null, null);
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "TDLib timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private volatile ExceptionHandler defaultExceptionHandler = null;
 
-    private static final int MAX_EVENTS = 1000;
-    private final long[] eventIds = new long[MAX_EVENTS];
-    private final TdApi.Object[] events = new TdApi.Object[MAX_EVENTS];
+    static final int MAX_EVENTS = 1000;
 
     private static class Handler {
         final ResultHandler resultHandler;
         final ExceptionHandler exceptionHandler;
+        final CompletableFuture<TdApi.Object> future;
+        final long deadline;
 
         Handler(ResultHandler resultHandler, ExceptionHandler exceptionHandler) {
             this.resultHandler = resultHandler;
             this.exceptionHandler = exceptionHandler;
+            this.future = null;
+            this.deadline = 0;
+        }
+
+        Handler(CompletableFuture<TdApi.Object> future, long deadline) {
+            this.resultHandler = null;
+            this.exceptionHandler = null;
+            this.future = future;
+            this.deadline = deadline;
         }
     }
 
-    private Client(ResultHandler updatesHandler, ExceptionHandler updateExceptionHandler, ExceptionHandler defaultExceptionHandler) {
+    Client(ResultHandler updatesHandler, ExceptionHandler updateExceptionHandler, ExceptionHandler defaultExceptionHandler, Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
         nativeClientId = createNativeClient();
-        handlers.put(0L, new Handler(updatesHandler, updateExceptionHandler));
+        this.updatesHandler = new Handler(updatesHandler, updateExceptionHandler);
         this.defaultExceptionHandler = defaultExceptionHandler;
+        sweeper = timeouts.scheduleWithFixedDelay(this::expireQueries, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void expireQueries() {
+        if (timedQueries.get() == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        handlers.forEach(new QueryTable.Visitor<Object>() {
+            @Override
+            public void visit(long id, Object value) {
+                if (value instanceof Handler) {
+                    Handler handler = (Handler) value;
+                    if (handler.future != null && now - handler.deadline > 0 && handlers.remove(id) != null) {
+                        timedQueries.decrementAndGet();
+                        handler.future.completeExceptionally(new TimeoutException("no answer to query " + id));
+                    }
+                }
+            }
+        });
     }
 
     @Override
@@ -229,19 +395,45 @@ public final class Client implements Runnable {
         if (object instanceof TdApi.UpdateAuthorizationState) {
             if (((TdApi.UpdateAuthorizationState) object).authorizationState instanceof TdApi.AuthorizationStateClosed) {
                 stopFlag = true;
+                closed.countDown();
             }
         }
-        Handler handler;
+        Object value;
         if (id == 0) {
             // update handler stays forever
-            handler = handlers.get(id);
+            value = updatesHandler;
+        } else {
+            value = handlers.remove(id);
+        }
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Handler && ((Handler) value).future != null) {
+            timedQueries.decrementAndGet();
+        }
+        if (dispatcher == null) {
+            dispatchResult(object, value);
         } else {
-            handler = handlers.remove(id);
+            final Object handler = value;
+            dispatcher.dispatch(id == 0, () -> dispatchResult(object, handler));
         }
-        if (handler == null) {
+    }
+
+    private void dispatchResult(TdApi.Object object, Object value) {
+        if (value instanceof ResultHandler) {
+            handleResult(object, (ResultHandler) value, null);
             return;
         }
 
+        Handler handler = (Handler) value;
+        if (handler.future != null) {
+            if (object instanceof TdApi.Error) {
+                handler.future.completeExceptionally(new TdlibException((TdApi.Error) object));
+            } else {
+                handler.future.complete(object);
+            }
+            return;
+        }
         handleResult(object, handler.resultHandler, handler.exceptionHandler);
     }
 
@@ -265,12 +457,37 @@ public final class Client implements Runnable {
         }
     }
 
-    private void receiveQueries(double timeout) {
+    /**
+     * Receives results if no other thread does it now, used by pollers of ClientManager.
+     *
+     * @return number of received results, -1 if client is destroyed and must not be polled anymore,
+     * {@link #POLL_SKIPPED} if client is not polled now
+     */
+    int poll(double timeout, long[] eventIds, TdApi.Object[] events) {
+        // client with too many results not handled yet is skipped, other clients of the poller are not held back
+        if (dispatcher != null && dispatcher.isFull() && !isNativeClientDestroyed) {
+            return POLL_SKIPPED;
+        }
+        if (!receiveLock.tryLock()) {
+            return POLL_SKIPPED;
+        }
+        try {
+            if (isNativeClientDestroyed) {
+                return -1;
+            }
+            return receiveQueries(timeout, eventIds, events);
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    private int receiveQueries(double timeout, long[] eventIds, TdApi.Object[] events) {
         int resultN = nativeClientReceive(nativeClientId, eventIds, events, timeout);
         for (int i = 0; i < resultN; i++) {
             processResult(eventIds[i], events[i]);
             events[i] = null;
         }
+        return resultN;
     }
 
     private static native long createNativeClient();
@@ -0,0 +1,134 @@
+//
+// Copyright Aliaksei Levin (levlam@telegram.org), Arseny Smirnov (arseny30@gmail.com) 2014-2019
+//
+// Distributed under the Boost Software License, Version 1.0. (See accompanying
+// file LICENSE_1_0.txt or copy at http://www.boost.org/LICENSE_1_0.txt)
+//
+package org.drinkless.tdlib;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many clients on a few poller threads instead of a thread per client.
+ * Poller polls its clients one after another without waiting while they have results; when all of them are idle
+ * it waits in each client a bit longer every round, so the round takes at most max wait.
+ */
+public final class ClientManager implements AutoCloseable {
+    // first wait of idle poller, it is doubled every idle round
+    private static final double MIN_WAIT = 0.001;
+
+    private final Poller[] pollers;
+    private final double maxWait;
+    private final AtomicInteger nextPoller = new AtomicInteger();
+
+    /**
+     * @param pollerCount Number of poller threads.
+     * @param maxWait     Longest time of polling round of idle clients, it is the longest delay of result as well.
+     */
+    public ClientManager(int pollerCount, long maxWait, TimeUnit unit) {
+        this.maxWait = unit.toNanos(maxWait) / 1e9;
+        pollers = new Poller[pollerCount];
+        for (int i = 0; i < pollerCount; i++) {
+            pollers[i] = new Poller();
+            Thread thread = new Thread(pollers[i], "TDLib poller " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates new Client polled by one of the manager threads, parameters are the same as in Client.create.
+     */
+    public Client create(Client.ResultHandler updatesHandler, Client.ExceptionHandler updatesExceptionHandler, Client.ExceptionHandler defaultExceptionHandler,
+                         Dispatcher dispatcher) {
+        Client client = new Client(updatesHandler, updatesExceptionHandler, defaultExceptionHandler, dispatcher);
+        pollers[Math.floorMod(nextPoller.getAndIncrement(), pollers.length)].clients.add(client);
+        return client;
+    }
+
+    public int getPollerCount() {
+        return pollers.length;
+    }
+
+    public int getClientCount() {
+        int count = 0;
+        for (Poller poller : pollers) {
+            count += poller.clients.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return longest duration of the last polling round of all pollers
+     */
+    public long getRoundMicros() {
+        long max = 0;
+        for (Poller poller : pollers) {
+            max = Math.max(max, poller.roundNanos);
+        }
+        return TimeUnit.NANOSECONDS.toMicros(max);
+    }
+
+    /**
+     * Stops pollers, clients have to be closed before.
+     */
+    @Override
+    public void close() {
+        for (Poller poller : pollers) {
+            poller.stopped = true;
+        }
+    }
+
+    private final class Poller implements Runnable {
+        private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+        private final long[] eventIds = new long[Client.MAX_EVENTS];
+        private final TdApi.Object[] events = new TdApi.Object[Client.MAX_EVENTS];
+        private volatile boolean stopped;
+        private volatile long roundNanos;
+
+        @Override
+        public void run() {
+            double wait = 0;
+            while (!stopped) {
+                long started = System.nanoTime();
+                if (clients.isEmpty()) {
+                    sleep(maxWait);
+                    continue;
+                }
+                // wait is shared by clients of the poller, so the round of idle clients is not longer than max wait
+                double clientWait = wait / clients.size();
+                boolean received = false;
+                boolean polled = false;
+                for (Client client : clients) {
+                    int count = client.poll(clientWait, eventIds, events);
+                    if (count == Client.POLL_SKIPPED) {
+                        continue;
+                    }
+                    polled = true;
+                    if (count < 0) {
+                        clients.remove(client);
+                    } else if (count > 0) {
+                        received = true;
+                    }
+                }
+                wait = received ? 0 : Math.min(Math.max(wait * 2, MIN_WAIT), maxWait);
+                if (!polled) {
+                    // all clients are busy with their backlog, nothing waits in native receive this round
+                    sleep(wait);
+                }
+                roundNanos = System.nanoTime() - started;
+            }
+        }
+
+        private void sleep(double seconds) {
+            try {
+                TimeUnit.NANOSECONDS.sleep((long) (seconds * 1e9));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+}
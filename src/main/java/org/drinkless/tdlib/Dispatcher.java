@@ -0,0 +1,120 @@
+//
+// Copyright Aliaksei Levin (levlam@telegram.org), Arseny Smirnov (arseny30@gmail.com) 2014-2019
+//
+// Distributed under the Boost Software License, Version 1.0. (See accompanying
+// file LICENSE_1_0.txt or copy at http://www.boost.org/LICENSE_1_0.txt)
+//
+package org.drinkless.tdlib;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Runs result handlers of one Client on the executor, so slow handlers do not delay receiving of other results.
+ * Updates are handled one after another in the order they were received, results of queries are handled in parallel.
+ * Dispatch never blocks the receiving thread, which can be shared with other clients. Instead the client is not
+ * polled while it has too many results not handled yet.
+ */
+public final class Dispatcher {
+    private final Executor executor;
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final Object capacity = new Object();
+    private final int maxBacklog;
+    private final LongConsumer handlerTime;
+    private final ConcurrentLinkedQueue<Runnable> updates = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean updatesScheduled = new AtomicBoolean();
+
+    /**
+     * @param executor    Executor running handlers, it can be shared by clients.
+     * @param maxBacklog  Results received and not handled yet, client is not polled when there are more.
+     * @param handlerTime Gets run time of each handler in nanoseconds, can be null.
+     */
+    public Dispatcher(Executor executor, int maxBacklog, LongConsumer handlerTime) {
+        this.executor = executor;
+        this.maxBacklog = maxBacklog;
+        this.handlerTime = handlerTime;
+    }
+
+    /**
+     * @return number of results received and not handled yet
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    boolean isFull() {
+        return backlog.get() >= maxBacklog;
+    }
+
+    /**
+     * Waits until backlog is below the limit, used by the own thread of client outside of receiving.
+     */
+    void awaitCapacity(long timeoutMillis) throws InterruptedException {
+        synchronized (capacity) {
+            if (isFull()) {
+                // notification can be missed between the check and the wait, so the wait is short
+                capacity.wait(timeoutMillis);
+            }
+        }
+    }
+
+    /**
+     * Results of one receive are dispatched even when backlog is full, so it can exceed the limit by one batch.
+     */
+    void dispatch(boolean update, Runnable handler) {
+        backlog.incrementAndGet();
+        Runnable task = () -> {
+            long started = System.nanoTime();
+            try {
+                handler.run();
+            } finally {
+                if (backlog.decrementAndGet() == maxBacklog - 1) {
+                    synchronized (capacity) {
+                        capacity.notifyAll();
+                    }
+                }
+                if (handlerTime != null) {
+                    handlerTime.accept(System.nanoTime() - started);
+                }
+            }
+        };
+        if (update) {
+            updates.add(task);
+            scheduleUpdates();
+        } else {
+            execute(task);
+        }
+    }
+
+    private void scheduleUpdates() {
+        if (!updates.isEmpty() && updatesScheduled.compareAndSet(false, true)) {
+            execute(this::drainUpdates);
+        }
+    }
+
+    private void drainUpdates() {
+        try {
+            Runnable task;
+            while ((task = updates.poll()) != null) {
+                task.run();
+            }
+        } finally {
+            updatesScheduled.set(false);
+        }
+        // update added after the loop and before the flag is cleared would wait for the next one otherwise
+        scheduleUpdates();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // executor is stopped while client is closing, remaining results are handled by receiving thread
+            task.run();
+        }
+    }
+}
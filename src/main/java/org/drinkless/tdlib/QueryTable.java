@@ -0,0 +1,108 @@
+//
+// Copyright Aliaksei Levin (levlam@telegram.org), Arseny Smirnov (arseny30@gmail.com) 2014-2019
+//
+// Distributed under the Boost Software License, Version 1.0. (See accompanying
+// file LICENSE_1_0.txt or copy at http://www.boost.org/LICENSE_1_0.txt)
+//
+package org.drinkless.tdlib;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Handlers of queries waiting for the TDLib answer, keyed by query id.
+ * Query ids are increasing, so the table is a ring indexed by {@code id & mask} and put and remove do not allocate.
+ * Query which finds its slot taken by an older query still waiting for the answer goes to the overflow map.
+ */
+final class QueryTable<V> {
+    interface Visitor<V> {
+        void visit(long id, V value);
+    }
+
+    private static final long FREE = 0;
+    // slot is being written or cleared by the thread which changed it from FREE or from the query id
+    private static final long BUSY = -1;
+
+    private final int mask;
+    private final AtomicLongArray ids;
+    private final AtomicReferenceArray<V> values;
+    private final ConcurrentHashMap<Long, V> overflow = new ConcurrentHashMap<Long, V>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity slots in the ring, rounded up to power of two
+     */
+    QueryTable(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = slots - 1;
+        ids = new AtomicLongArray(slots);
+        values = new AtomicReferenceArray<V>(slots);
+    }
+
+    /**
+     * @param id positive query id, not in the table
+     */
+    void put(long id, V value) {
+        int slot = (int) (id & mask);
+        if (ids.compareAndSet(slot, FREE, BUSY)) {
+            values.set(slot, value);
+            ids.set(slot, id);
+        } else {
+            overflow.put(id, value);
+        }
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return removed value, null if there is no such query
+     */
+    V remove(long id) {
+        if (id <= 0) {
+            // would match FREE or BUSY slot
+            return null;
+        }
+        int slot = (int) (id & mask);
+        V value;
+        if (ids.compareAndSet(slot, id, BUSY)) {
+            value = values.getAndSet(slot, null);
+            ids.set(slot, FREE);
+        } else if (overflow.isEmpty()) {
+            return null;
+        } else {
+            value = overflow.remove(id);
+            if (value == null) {
+                return null;
+            }
+        }
+        size.decrementAndGet();
+        return value;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Visits queries present during the whole call, visitor can remove them.
+     */
+    void forEach(Visitor<V> visitor) {
+        for (int slot = 0; slot <= mask; slot++) {
+            long id = ids.get(slot);
+            if (id > 0) {
+                V value = values.get(slot);
+                // slot can be reused after reading the id, value is visited only if the id is still there
+                if (value != null && ids.get(slot) == id) {
+                    visitor.visit(id, value);
+                }
+            }
+        }
+        if (!overflow.isEmpty()) {
+            for (Map.Entry<Long, V> entry : overflow.entrySet()) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.drinkless.tdlib;
+
+/**
+ * Error returned by the TDLib as result of a query sent with {@link Client#sendAsync}.
+ */
+public class TdlibException extends RuntimeException {
+    private final TdApi.Error error;
+
+    public TdlibException(TdApi.Error error) {
+        super(error.code + " : " + error.message);
+        this.error = error;
+    }
+
+    public TdApi.Error getError() {
+        return error;
+    }
+}
@@ -2,9 +2,11 @@ package ru.telebot;
 
 import com.zaxxer.hikari.HikariDataSource;
 import com.zaxxer.hikari.pool.HikariPool;
-import org.apache.activemq.ActiveMQConnectionFactory;
 import org.drinkless.tdlib.Client;
+import org.drinkless.tdlib.ClientManager;
+import org.drinkless.tdlib.Dispatcher;
 import org.drinkless.tdlib.TdApi;
+import org.drinkless.tdlib.TdlibException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.telebot.dao.DbHelper;
@@ -14,13 +16,26 @@ import ru.telebot.handlers.AuthorizationRequestHandler;
 import ru.telebot.handlers.BotUpdatesHandler;
 import ru.telebot.handlers.QueueHandler;
 import ru.telebot.handlers.UpdatesHandler;
+import ru.telebot.queue.ForwardQueue;
+import ru.telebot.queue.ForwardQueues;
 
-import javax.jms.*;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 public class Bot implements Runnable, AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(Bot.class);
@@ -36,25 +51,65 @@ public class Bot implements Runnable, AutoCloseable {
     private static String BOT_OWNER;
     private static String[] WORKERS;
 
-    public static int SENDING_DELAY;
-
-    private static AtomicInteger currentWorkerIndex = new AtomicInteger(0);
+    private static RateLimiter rateLimiter;
+    private static final WorkerSelector workerSelector = new WorkerSelector();
+    private static int FLOOD_MAX_RETRIES;
+    private static final LongAdder floodExhausted = Metrics.counter("send.flood.exhausted");
+    // query not answered by TDLib in this time fails, so its callback and captured message are released
+    private static Duration QUERY_TIMEOUT;
+    private static int CLIENT_CLOSE_TIMEOUT;
+    // clients share poller threads if it is set, otherwise each client has its own thread
+    private static ClientManager clientManager;
+    // result handlers of clients run here if it is set, otherwise in the thread receiving results
+    private static ExecutorService dispatchExecutor;
+    private static int DISPATCH_BACKLOG;
+    private static final Metrics.Timer dispatchTimer = Metrics.timer("tdlib.dispatch.handler");
 
     private static HikariDataSource dataSource = null;
     private static final ConcurrentMap<String, Client> openSessions = new ConcurrentHashMap<>();
-    private static final ConcurrentMap<String, ExpiryEntity> codeStorage = new ConcurrentHashMap<>();
-    private static final ConcurrentMap<String, ExpiryEntity> passwordStorage = new ConcurrentHashMap<>();
+    // auth code and password requested from user, completed by bot command handler
+    private static final ConcurrentMap<String, CompletableFuture<String>> codeRequests = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CompletableFuture<String>> passwordRequests = new ConcurrentHashMap<>();
+    // expired names are removed when read and by hourly sweep
     private static final ConcurrentMap<Long, ExpiryEntity> channelNameStorage = new ConcurrentHashMap<>();
 
 
     private static Client worker = null;
+    private static final Lifecycle lifecycle = new Lifecycle();
+    private static final Set<String> authorizedAccounts = ConcurrentHashMap.newKeySet();
     private static Client bot = null;
-    private static javax.jms.Session jmsSession;
-    private static MessageProducer producer;
-
-    private static final ExecutorService executor = new ThreadPoolExecutor(1, 30,
-            0L, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<>());
+    private static ForwardQueue forwardQueue;
+    private static final Metrics.Timer enqueueTimer = Metrics.timer("queue.enqueue");
+    // telegram allows up to 10 photos and videos in one album
+    private static final int ALBUM_MAX_SIZE = 10;
+    private static WindowedAggregator<String, ForwardJob> albums;
+    private static WindowedAggregator<String, ForwardJob> batches;
+    private static ContentRenderer contentRenderer;
+    private static StartupCoordinator startup;
+    private static final ConcurrentMap<String, TdlibProfile> profiles = new ConcurrentHashMap<>();
+    // last storage statistics of accounts, refreshed with storage optimization
+    private static final ConcurrentMap<String, TdApi.StorageStatisticsFast> storageStatistics = new ConcurrentHashMap<>();
+    private static long STORAGE_MAX_SIZE;
+    private static int STORAGE_TTL;
+
+    // short timers: user input and startup timeouts
+    private static final ScheduledExecutorService scheduler = newScheduler("bot-scheduler");
+    // delayed sends only, nothing else may hold them back
+    private static final ScheduledExecutorService sendScheduler = newScheduler("send-scheduler");
+    // flushes of albums and batches, they wait for the queue when it is full
+    private static final ScheduledExecutorService enqueueScheduler = newScheduler("enqueue-scheduler");
+    // messages of a source chat are queued under its lock, timer flush of its albums and batches takes it as well
+    private static final Object[] enqueueLocks = Stream.generate(Object::new).limit(64).toArray();
+    // long jobs: expiration of forwarded messages with bloom filter rebuild, storage, metrics and queue consumers
+    private static final ScheduledExecutorService maintenance = newScheduler("bot-maintenance");
+
+    private static OrderedExecutor ingest;
+    private static final RoutingIndex routingIndex = new RoutingIndex();
+    private static ForwardedMessagePartitions forwardedMessagePartitions;
+    private static ForwardedMessageWriter forwardedMessageWriter;
+    private static int RETENTION_DAYS;
+    private static DedupService dedup;
+    private static SessionStore sessionStore;
 
 
     public Bot() throws BotException {
@@ -79,36 +134,87 @@ public class Bot implements Runnable, AutoCloseable {
             PROXY_PORT = Config.getIntValue("proxy.port");
             PROXY_USER = Config.getValue("proxy.user");
             PROXY_PASS = Config.getValue("proxy.password");
-            SENDING_DELAY = Config.getIntValueOrDefault("sending.delay", 1000);
+            // sending.delay was the pause between all sends, now it is the default pause between sends of one account
+            int sendingDelay = Config.getIntValueOrDefault("sending.delay", 1000);
+            rateLimiter = new RateLimiter(
+                    Double.parseDouble(Config.getValueOrDefault("rate.global.per_second", "30")),
+                    Config.getIntValueOrDefault("rate.global.burst", 1),
+                    Double.parseDouble(Config.getValueOrDefault("rate.account.per_second", String.valueOf(1000.0 / sendingDelay))),
+                    Config.getIntValueOrDefault("rate.account.burst", 1),
+                    Double.parseDouble(Config.getValueOrDefault("rate.destination.per_second", "1")),
+                    Config.getIntValueOrDefault("rate.destination.burst", 1));
+            FLOOD_MAX_RETRIES = Config.getIntValueOrDefault("flood.max.retries", 5);
+            QUERY_TIMEOUT = Duration.ofSeconds(Config.getIntValueOrDefault("tdlib.query.timeout", 30));
+            CLIENT_CLOSE_TIMEOUT = Config.getIntValueOrDefault("shutdown.timeout", 30);
+            int dispatchThreads = Config.getIntValueOrDefault("tdlib.dispatch.threads", 0);
+            if (dispatchThreads > 0) {
+                DISPATCH_BACKLOG = Config.getIntValueOrDefault("tdlib.dispatch.backlog", 1000);
+                dispatchExecutor = Executors.newFixedThreadPool(dispatchThreads, r -> {
+                    Thread thread = new Thread(r, "tdlib-dispatch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            int pollers = Config.getIntValueOrDefault("tdlib.pollers", 0);
+            if (pollers > 0) {
+                clientManager = new ClientManager(pollers, Config.getIntValueOrDefault("tdlib.poll.max.wait", 50), TimeUnit.MILLISECONDS);
+                Metrics.gauge("tdlib.threads", clientManager::getPollerCount);
+                Metrics.gauge("tdlib.poll.round_us", clientManager::getRoundMicros);
+            } else {
+                Metrics.gauge("tdlib.threads", () -> openSessions.size() + (bot != null ? 1 : 0));
+            }
+            albums = new WindowedAggregator<>(enqueueScheduler, Config.getIntValueOrDefault("album.window", 500), ALBUM_MAX_SIZE,
+                    Bot::flushInOrder, (key, parts) -> sendToQueue(createAlbumJob(parts)));
+            contentRenderer = new ContentRenderer(Config.getIntValueOrDefault("render.cache.size", 1000));
+            // telegram forwards up to 100 messages with one request
+            batches = new WindowedAggregator<>(enqueueScheduler, Config.getIntValueOrDefault("batch.window", 1000),
+                    Math.min(Config.getIntValueOrDefault("batch.max.size", 20), 100),
+                    Bot::flushInOrder, (key, parts) -> sendToQueue(createBatchJob(parts)));
             WORKERS = Config.getValue("bot.workers").split(";");
+            STORAGE_MAX_SIZE = Config.getIntValueOrDefault("tdlib.storage.max.mb", 100) * 1024L * 1024L;
+            STORAGE_TTL = Config.getIntValueOrDefault("tdlib.storage.ttl", 86400);
+            Metrics.gauge("process.rss_kb", Metrics::residentKilobytes);
+            startup = new StartupCoordinator(Config.getIntValueOrDefault("startup.parallelism", 4),
+                    Config.getIntValueOrDefault("startup.account.timeout", 60), TimeUnit.SECONDS, scheduler);
+            ingest = new OrderedExecutor("ingest",
+                    Config.getIntValueOrDefault("ingest.threads", 4),
+                    Config.getIntValueOrDefault("ingest.queue.size", 1000),
+                    OrderedExecutor.Backpressure.parse(Config.getValueOrDefault("ingest.backpressure", "block")));
             logger.debug("testing connection...");
             DbHelper.testConnection(dataSource);
             logger.debug("connection is OK");
+            DbHelper.migrate(dataSource);
+            RETENTION_DAYS = Config.getIntValueOrDefault("forward.retention.days", 30);
+            forwardedMessagePartitions = new ForwardedMessagePartitions(dataSource);
+            forwardedMessagePartitions.reload();
+            forwardedMessageWriter = new ForwardedMessageWriter(dataSource, forwardedMessagePartitions,
+                    Config.getIntValueOrDefault("forward.flush.interval", 200),
+                    Config.getIntValueOrDefault("forward.flush.batch", 500));
+            dedup = new DedupService(dataSource, forwardedMessagePartitions, forwardedMessageWriter,
+                    Config.getIntValueOrDefault("dedup.cache.size", 10000),
+                    Config.getIntValueOrDefault("dedup.bloom.expected", 1000000),
+                    Double.parseDouble(Config.getValueOrDefault("dedup.bloom.fpp", "0.01")));
+            dedup.warmUp();
 
             logger.debug("init completed");
 
-            List<Session> sessions = DbHelper.getSessions(dataSource);
-            logger.debug("sessions count : " + sessions.size());
-            sessions.forEach(s -> logger.debug(s.toString()));
+            sessionStore = new SessionStore(dataSource);
+            sessionStore.load();
+            logger.debug("sessions count: " + sessionStore.getSessions().size());
 
-            List<Chat> destinations = DbHelper.getAllPossibleDestinations(dataSource);
-            logger.debug("destination count: " + destinations.size());
-            destinations.forEach(dest -> logger.debug(dest.toString()));
-
-            List<Chat> links = DbHelper.getAllLinks(dataSource);
-            logger.debug("links count: " + links.size());
-            links.forEach(link -> logger.debug(link.toString()));
-
-            ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("tcp://127.0.0.1:61616");
-            Connection jmsConnection = connectionFactory.createConnection();
-            jmsConnection.start();
-            jmsSession = jmsConnection.createSession(false, javax.jms.Session.AUTO_ACKNOWLEDGE);
-            Queue queue = jmsSession.createQueue("oneWindow");
-            producer = jmsSession.createProducer(queue);
-            MessageConsumer consumer = jmsSession.createConsumer(queue);
-            consumer.setMessageListener(new QueueHandler());
-
-        } catch (HikariPool.PoolInitializationException | SQLException | JMSException ex) {
+            routingIndex.reload(dataSource);
+            logger.debug("routes count: " + routingIndex.size());
+            Metrics.gauge("routing.routes", routingIndex::size);
+
+            forwardQueue = ForwardQueues.create(Config.getValueOrDefault("queue.backend", "broker"),
+                    Config.getValueOrDefault("queue.data.dir", "activemq-data"),
+                    Config.getIntValueOrDefault("queue.lanes", 4),
+                    Config.getIntValueOrDefault("queue.max.inflight", 100),
+                    Config.getIntValueOrDefault("queue.producers", Config.getIntValueOrDefault("ingest.threads", 4)));
+            // consumers are attached only while jobs can be sent
+            lifecycle.addListener(Bot::onStateChanged);
+
+        } catch (HikariPool.PoolInitializationException | SQLException ex) {
             logger.error(ex.getMessage(), ex);
             logger.debug("init failed");
             throw new BotException(ex);
@@ -119,6 +225,51 @@ public class Bot implements Runnable, AutoCloseable {
         return worker != null;
     }
 
+    private static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static Lifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    private static void onStateChanged(Lifecycle.State from, Lifecycle.State to) {
+        if (to == Lifecycle.State.READY) {
+            maintenance.execute(() -> {
+                try {
+                    forwardQueue.subscribe(new QueueHandler());
+                    logger.info("queue consumers attached");
+                } catch (BotException ex) {
+                    logger.error(ex.getMessage(), ex);
+                }
+            });
+        } else if (from == Lifecycle.State.READY && to == Lifecycle.State.WORKERS_AUTHORIZING) {
+            maintenance.execute(() -> {
+                forwardQueue.unsubscribe();
+                logger.info("queue consumers detached");
+            });
+        }
+    }
+
+    /**
+     * Bot is ready when owner account and any account reading sources are authorized, other accounts may be still
+     * loading. It stays ready while any account can send.
+     */
+    private static void updateReadiness() {
+        boolean ownerReady = authorizedAccounts.contains(BOT_OWNER);
+        // without any route there is nothing to wait for but the owner
+        boolean routeReady = routingIndex.size() == 0 || authorizedAccounts.stream().anyMatch(routingIndex::hasRoutes);
+        if (ownerReady && routeReady) {
+            lifecycle.moveTo(Lifecycle.State.WORKERS_AUTHORIZING, Lifecycle.State.READY);
+        } else if (getAccountsForResend().isEmpty()) {
+            lifecycle.moveTo(Lifecycle.State.READY, Lifecycle.State.WORKERS_AUTHORIZING);
+        }
+    }
+
     @Override
     public void run() {
         if (bot != null) {
@@ -128,35 +279,36 @@ public class Bot implements Runnable, AutoCloseable {
 
         createBot();
         try {
-            List<Session> sessions = DbHelper.getSessions(dataSource);
-            sessions.stream().filter(s -> State.AUTHORIZED.equals(s.getAuthState())).forEach(s -> createClient(s.getPhone(), s.getClientId()));
-        } catch (SQLException ex) {
+            int reportInterval = Config.getIntValueOrDefault("metrics.report.interval", 60);
+            maintenance.scheduleWithFixedDelay(Metrics::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+            maintenance.scheduleWithFixedDelay(Bot::expireForwardedMessages, 1, 60, TimeUnit.MINUTES);
+            maintenance.scheduleWithFixedDelay(Bot::expireChannelNames, 1, 1, TimeUnit.HOURS);
+            int storageInterval = Config.getIntValueOrDefault("tdlib.storage.interval", 60);
+            maintenance.scheduleWithFixedDelay(Bot::maintainStorage, 1, storageInterval, TimeUnit.MINUTES);
+        } catch (BotException ex) {
             logger.error(ex.getMessage(), ex);
-            return;
         }
-
-        while (true) {
-            try {
-                Thread.sleep(10000);
-                final LocalDateTime now = LocalDateTime.now();
-                codeStorage.values().removeIf(ent -> ent.getExpireTime().isBefore(now));
-                passwordStorage.values().removeIf(ent -> ent.getExpireTime().isBefore(now));
-                channelNameStorage.values().removeIf(ent -> ent.getExpireTime().isBefore(now));
-            } catch (InterruptedException ex) {
-                break;
-            }
-        }
-
+        lifecycle.moveTo(Lifecycle.State.WORKERS_AUTHORIZING);
+        // sessions are loaded by the constructor
+        Map<String, Long> clientIds = new LinkedHashMap<>();
+        sessionStore.getSessions().stream()
+                .filter(s -> State.AUTHORIZED.equals(s.getAuthState()))
+                // owner and accounts reading sources go first, forwarding can start when they are ready
+                .sorted(Comparator.comparingInt(s -> BOT_OWNER.equals(s.getPhone()) ? 0 : routingIndex.hasRoutes(s.getPhone()) ? 1 : 2))
+                .forEach(s -> clientIds.put(s.getPhone(), s.getClientId()));
+        logger.info("opening " + clientIds.size() + " sessions");
+        startup.start(new ArrayList<>(clientIds.keySet()), phone -> createClient(phone, clientIds.get(phone)));
     }
 
     private static Client createClient(String phone, long clientId) {
         Client old = openSessions.get(phone);
         if (old != null) {
-            old.close();
+            old.close(CLIENT_CLOSE_TIMEOUT, TimeUnit.SECONDS);
         }
         UpdatesHandler handler = new UpdatesHandler(phone, clientId);
-        Client client = Client.create(handler, e -> logger.error(e.getMessage(), e), e -> logger.error(e.getMessage(), e));
+        Client client = newClient(handler, phone);
         openSessions.put(phone, client);
+        Metrics.gauge("tdlib." + phone + ".inflight", client::getPendingQueries);
         if (BOT_OWNER.equals(phone)) {
             worker = client;
         }
@@ -168,12 +320,33 @@ public class Bot implements Runnable, AutoCloseable {
         return client;
     }
 
+    private static Client newClient(Client.ResultHandler handler, String name) {
+        try {
+            profiles.put(name, TdlibProfile.of(name));
+        } catch (BotException | IllegalArgumentException ex) {
+            logger.error("tdlib profile of " + name + " : " + ex.getMessage(), ex);
+        }
+        Metrics.gauge("tdlib." + name + ".storage.files_bytes", () -> storageStatistics.containsKey(name) ? storageStatistics.get(name).filesSize : -1);
+        Metrics.gauge("tdlib." + name + ".storage.file_count", () -> storageStatistics.containsKey(name) ? storageStatistics.get(name).fileCount : -1);
+        Metrics.gauge("tdlib." + name + ".storage.database_bytes", () -> storageStatistics.containsKey(name) ? storageStatistics.get(name).databaseSize : -1);
+        Dispatcher dispatcher = null;
+        if (dispatchExecutor != null) {
+            dispatcher = new Dispatcher(dispatchExecutor, DISPATCH_BACKLOG, dispatchTimer::record);
+            Metrics.gauge("tdlib." + name + ".dispatch.backlog", dispatcher::getBacklog);
+        }
+        if (clientManager != null) {
+            return clientManager.create(handler, e -> logger.error(e.getMessage(), e), e -> logger.error(e.getMessage(), e), dispatcher);
+        }
+        return Client.create(handler, e -> logger.error(e.getMessage(), e), e -> logger.error(e.getMessage(), e), dispatcher);
+    }
+
     private static void createBot() {
         if (bot != null) {
-            bot.close();
+            bot.close(CLIENT_CLOSE_TIMEOUT, TimeUnit.SECONDS);
         }
         BotUpdatesHandler handler = new BotUpdatesHandler();
-        bot = Client.create(handler, e -> logger.error(e.getMessage(), e), e -> logger.error(e.getMessage(), e));
+        bot = newClient(handler, "bot");
+        Metrics.gauge("tdlib.bot.inflight", bot::getPendingQueries);
         if (PROXY_ENABLED) {
 
             bot.send(new TdApi.AddProxy(PROXY_HOST, PROXY_PORT, true, new TdApi.ProxyTypeSocks5(PROXY_USER, PROXY_PASS)),
@@ -181,55 +354,113 @@ public class Bot implements Runnable, AutoCloseable {
         }
     }
 
-    private static TdApi.InputMessageContent createNewMessage(TdApi.UpdateNewMessage message, String channelName, int date) {
-        TdApi.InputMessageContent inputMessageContent = null;
+    public static ForwardJob createForwardJob(long chatIdTo, TdApi.UpdateNewMessage message, String title, int date) {
+        ForwardJob job = new ForwardJob();
+        job.setChatIdTo(chatIdTo);
+        job.setSourceChatId(message.message.chatId);
+        job.setMessageId(message.message.id);
+        job.setTitle(title);
+        job.setDate(date);
+        job.setMediaAlbumId(message.message.mediaAlbumId);
         if (message.message.content instanceof TdApi.MessageText) {
             TdApi.MessageText messageText = (TdApi.MessageText) message.message.content;
-            String text = channelName + " : " + date + " \n";
-            TdApi.TextEntity[] entity = shiftEntity(messageText.text.entities, text.length());
-            TdApi.FormattedText formattedText = new TdApi.FormattedText(text + messageText.text.text, entity);
-            inputMessageContent = new TdApi.InputMessageText(formattedText, false, true);
+            job.setKind(ForwardJob.ContentKind.TEXT);
+            job.setText(messageText.text.text);
+            job.setEntities(messageText.text.entities);
         } else if (message.message.content instanceof TdApi.MessagePhoto) {
             TdApi.MessagePhoto messagePhoto = (TdApi.MessagePhoto) message.message.content;
-            String text = channelName + " : " + date + " \n";
-            TdApi.TextEntity[] entity = shiftEntity(messagePhoto.caption.entities, text.length());
-            TdApi.FormattedText formattedText = new TdApi.FormattedText(text + messagePhoto.caption.text, entity);
-            inputMessageContent = new TdApi.InputMessagePhoto(new TdApi.InputFileRemote(messagePhoto.photo.sizes[0].photo.remote.id), null, null, 0, 0, formattedText, 0);
+            TdApi.PhotoSize size = messagePhoto.photo.sizes[0];
+            job.setKind(ForwardJob.ContentKind.PHOTO);
+            job.setText(messagePhoto.caption.text);
+            job.setEntities(messagePhoto.caption.entities);
+            job.setRemoteFileId(size.photo.remote.id);
+            job.setWidth(size.width);
+            job.setHeight(size.height);
         } else if (message.message.content instanceof TdApi.MessageAnimation) {
             TdApi.MessageAnimation messageAnimation = (TdApi.MessageAnimation) message.message.content;
-            String text = channelName + " : " + date + " \n";
-            TdApi.TextEntity[] entity = shiftEntity(messageAnimation.caption.entities, text.length());
-            TdApi.FormattedText formattedText = new TdApi.FormattedText(text + messageAnimation.caption.text, entity);
-            inputMessageContent = new TdApi.InputMessageAnimation(new TdApi.InputFileRemote(messageAnimation.animation.animation.remote.id), null, messageAnimation.animation.duration, messageAnimation.animation.width, messageAnimation.animation.height, formattedText);
+            job.setKind(ForwardJob.ContentKind.ANIMATION);
+            job.setText(messageAnimation.caption.text);
+            job.setEntities(messageAnimation.caption.entities);
+            job.setRemoteFileId(messageAnimation.animation.animation.remote.id);
+            job.setDuration(messageAnimation.animation.duration);
+            job.setWidth(messageAnimation.animation.width);
+            job.setHeight(messageAnimation.animation.height);
         } else if (message.message.content instanceof TdApi.MessageVideo) {
             TdApi.MessageVideo messageVideo = (TdApi.MessageVideo) message.message.content;
-            String text = channelName + " : " + date + " \n";
-            TdApi.TextEntity[] entity = shiftEntity(messageVideo.caption.entities, text.length());
-            TdApi.FormattedText formattedText = new TdApi.FormattedText(text + messageVideo.caption.text, entity);
-            inputMessageContent = new TdApi.InputMessageVideo(new TdApi.InputFileRemote(messageVideo.video.video.remote.id), null, null, messageVideo.video.duration, messageVideo.video.width, messageVideo.video.height, messageVideo.video.supportsStreaming, formattedText, 0);
+            job.setKind(ForwardJob.ContentKind.VIDEO);
+            job.setText(messageVideo.caption.text);
+            job.setEntities(messageVideo.caption.entities);
+            job.setRemoteFileId(messageVideo.video.video.remote.id);
+            job.setDuration(messageVideo.video.duration);
+            job.setWidth(messageVideo.video.width);
+            job.setHeight(messageVideo.video.height);
+            job.setSupportsStreaming(messageVideo.video.supportsStreaming);
         } else if (message.message.content instanceof TdApi.MessageDocument) {
             TdApi.MessageDocument messageDocument = (TdApi.MessageDocument) message.message.content;
-            String text = channelName + " : " + date + " \n";
-            TdApi.TextEntity[] entity = shiftEntity(messageDocument.caption.entities, text.length());
-            TdApi.FormattedText formattedText = new TdApi.FormattedText(text + messageDocument.caption.text, entity);
-            inputMessageContent = new TdApi.InputMessageDocument(new TdApi.InputFileRemote(messageDocument.document.document.remote.id), null, formattedText);
-
+            job.setKind(ForwardJob.ContentKind.DOCUMENT);
+            job.setText(messageDocument.caption.text);
+            job.setEntities(messageDocument.caption.entities);
+            job.setRemoteFileId(messageDocument.document.document.remote.id);
         } else {
             logger.debug("unsupported type for forward: " + message.message.content.getClass().getSimpleName());
+            return null;
         }
-        return inputMessageContent;
+        return job;
+    }
+
+    /**
+     * @param parts album parts from one source chat to one destination
+     * @return album job, or the part itself if it is the only one
+     */
+    static ForwardJob createAlbumJob(List<ForwardJob> parts) {
+        return parts.size() == 1 ? parts.get(0) : createGroupJob(ForwardJob.ContentKind.ALBUM, parts);
+    }
+
+    /**
+     * @param parts messages of batch link from one source chat to one destination
+     */
+    static ForwardJob createBatchJob(List<ForwardJob> parts) {
+        ForwardJob job = createGroupJob(ForwardJob.ContentKind.BATCH, parts);
+        job.setAccount(parts.get(0).getAccount());
+        return job;
+    }
+
+    private static ForwardJob createGroupJob(ForwardJob.ContentKind kind, List<ForwardJob> parts) {
+        // title of the forwarded chat can be requested for each part, so parts can come out of order
+        List<ForwardJob> items = new ArrayList<>(parts);
+        items.sort(Comparator.comparingLong(ForwardJob::getMessageId));
+        ForwardJob first = items.get(0);
+        ForwardJob job = new ForwardJob();
+        job.setChatIdTo(first.getChatIdTo());
+        job.setSourceChatId(first.getSourceChatId());
+        job.setMessageId(first.getMessageId());
+        job.setTitle(first.getTitle());
+        job.setDate(first.getDate());
+        job.setMediaAlbumId(first.getMediaAlbumId());
+        job.setKind(kind);
+        job.setItems(items);
+        return job;
     }
 
     public static void onNewMessage(TdApi.UpdateNewMessage message, String phone) {
+        // most of updates come from chats which are not linked, they are filtered out here without any allocation
+        if (!routingIndex.isSource(phone, message.message.chatId)) {
+            return;
+        }
+        // called from TDLib thread, so all blocking work is done by ingest lane of the source chat
+        ingest.execute(message.message.chatId, () -> handleNewMessage(message, phone));
+    }
+
+    private static void handleNewMessage(TdApi.UpdateNewMessage message, String phone) {
         logger.debug("new message arrived for " + phone);
         if (!isReady()) {
             logger.error("worker not started, message ignored");
             return;
         }
         try {
-            List<Chat> chats = DbHelper.getChatsToForward(dataSource, phone, message.message.chatId);
+            Chat[] chats = routingIndex.getRoutes(phone, message.message.chatId);
             for (Chat chat : chats) {
-                if (!DbHelper.messageWasForwarderToChannel(dataSource, message.message.id, chat.getChatIdTo())) {
+                if (!dedup.wasForwarded(message.message.chatId, message.message.id, chat.getChatIdTo())) {
 
                     logger.debug("message type: " + message.message.content.getClass().getSimpleName());
                     final int date = message.message.forwardInfo != null ? message.message.forwardInfo.date : message.message.date;
@@ -240,7 +471,7 @@ public class Bot implements Runnable, AutoCloseable {
                             if (chatObject.id != 0) {
                                 channelNameStorage.put(chatObject.id, new ExpiryEntity(chatObject.title, LocalDateTime.now().plusDays(1)));
                             }
-                            addMessageToQueue(chat.getChatIdTo(), message, chatObject.title, date);
+                            addMessageToQueue(chat, message, chatObject.title, date);
 
                         } else if (object.getConstructor() == TdApi.User.CONSTRUCTOR) {
 
@@ -251,7 +482,7 @@ public class Bot implements Runnable, AutoCloseable {
                                 channelNameStorage.put((long) chatUser.id, new ExpiryEntity(userName, LocalDateTime.now().plusDays(1)));
                             }
 
-                            addMessageToQueue(chat.getChatIdTo(), message, userName, date);
+                            addMessageToQueue(chat, message, userName, date);
 
                         } else {
                             logger.debug(object.toString());
@@ -261,7 +492,7 @@ public class Bot implements Runnable, AutoCloseable {
                     if (message.message.forwardInfo != null) {
                         if (message.message.forwardInfo.origin.getConstructor() == TdApi.MessageForwardOriginChannel.CONSTRUCTOR) {
                             long chatId = ((TdApi.MessageForwardOriginChannel) message.message.forwardInfo.origin).chatId;
-                            ExpiryEntity chatName = channelNameStorage.get(chatId);
+                            ExpiryEntity chatName = getChannelName(chatId);
                             if (chatName != null) {
                                 logger.debug("get chat name " + chatName.getValue() + " from cache");
                                 TdApi.Chat knownChat = new TdApi.Chat();
@@ -269,11 +500,11 @@ public class Bot implements Runnable, AutoCloseable {
                                 handler.onResult(knownChat);
                             } else {
                                 logger.debug("trying to get channel header " + chatId);
-                                openSessions.get(phone).send(new TdApi.GetChat(chatId), handler);
+                                lookup(phone, new TdApi.GetChat(chatId), handler);
                             }
                         } else if (message.message.forwardInfo.origin.getConstructor() == TdApi.MessageForwardOriginUser.CONSTRUCTOR) {
                             int senderUserId = ((TdApi.MessageForwardOriginUser) message.message.forwardInfo.origin).senderUserId;
-                            ExpiryEntity chatName = channelNameStorage.get((long) senderUserId);
+                            ExpiryEntity chatName = getChannelName(senderUserId);
                             if (chatName != null) {
                                 logger.debug("get user name " + chatName.getValue() + " from cache");
                                 TdApi.User knownUser = new TdApi.User();
@@ -281,7 +512,7 @@ public class Bot implements Runnable, AutoCloseable {
                                 handler.onResult(knownUser);
                             } else {
                                 logger.debug("trying to get user chat header " + senderUserId);
-                                openSessions.get(phone).send(new TdApi.GetUser(senderUserId), handler);
+                                lookup(phone, new TdApi.GetUser(senderUserId), handler);
                             }
                         } else {
                             TdApi.Chat hiddenUser = new TdApi.Chat();
@@ -302,61 +533,342 @@ public class Bot implements Runnable, AutoCloseable {
         }
     }
 
-    private static void addMessageToQueue(long chatIdTo, TdApi.UpdateNewMessage message, String title, int date) {
+    /**
+     * Waits for the result in the ingest lane, so the message is queued by the lane in order with the next messages
+     * of its chat and not by TDLib thread. Wait is bounded by query timeout, header is rarely looked up as it is cached.
+     */
+    private static void lookup(String phone, TdApi.Function query, Client.ResultHandler handler) {
+        Client client = openSessions.get(phone);
+        if (client == null) {
+            logger.error("no session of " + phone + " for " + query.getClass().getSimpleName());
+            return;
+        }
+        TdApi.Object object;
         try {
-            ObjectMessage objectMessage = jmsSession.createObjectMessage(message);
-            objectMessage.setLongProperty(QueueHandler.CHAT_ID_PROPERTY, chatIdTo);
-            objectMessage.setStringProperty(QueueHandler.TITLE_PROPERTY, title);
-            objectMessage.setIntProperty(QueueHandler.DATE_PROPERTY, date);
-            producer.send(objectMessage);
-            logger.debug("put message " + message.message.id + " to queue");
-        } catch (JMSException e) {
+            object = client.sendAsync(query, QUERY_TIMEOUT).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.error("no result of " + query.getClass().getSimpleName() + " for " + phone + ": interrupted");
+            return;
+        } catch (ExecutionException ex) {
+            logger.error("no result of " + query.getClass().getSimpleName() + " for " + phone + ": " + ex.getCause().getMessage());
+            return;
+        }
+        handler.onResult(object);
+    }
+
+    private static void addMessageToQueue(Chat chat, TdApi.UpdateNewMessage message, String title, int date) {
+        ForwardJob job = createForwardJob(chat.getChatIdTo(), message, title, date);
+        if (job == null) {
+            return;
+        }
+        synchronized (enqueueLock(job.getSourceChatId())) {
+            if (chat.isBatch()) {
+                job.setAccount(chat.getOwner());
+                batches.add(job.getSourceChatId() + ":" + job.getChatIdTo(), job);
+                return;
+            }
+            String albumPrefix = job.getSourceChatId() + ":" + job.getChatIdTo() + ":";
+            if (job.getMediaAlbumId() != 0 && (job.getKind() == ForwardJob.ContentKind.PHOTO || job.getKind() == ForwardJob.ContentKind.VIDEO)) {
+                albums.add(albumPrefix + job.getMediaAlbumId(), job);
+                return;
+            }
+            // album which is still collected was posted before this message
+            albums.flushIf(key -> key.startsWith(albumPrefix));
+            sendToQueue(job);
+        }
+    }
+
+    /**
+     * Group of albums and batches is flushed by its timer under the lock of the source chat, so it is not queued
+     * after the next message of the chat queued by the ingest lane at the same time.
+     *
+     * @param key source chat id is the first part of the key
+     */
+    private static void flushInOrder(String key, Runnable flush) {
+        synchronized (enqueueLock(Long.parseLong(key.substring(0, key.indexOf(':'))))) {
+            flush.run();
+        }
+    }
+
+    private static Object enqueueLock(long sourceChatId) {
+        return enqueueLocks[OrderedExecutor.laneFor(sourceChatId, enqueueLocks.length)];
+    }
+
+    private static void sendToQueue(ForwardJob job) {
+        try {
+            long start = System.nanoTime();
+            forwardQueue.send(job);
+            enqueueTimer.recordSince(start);
+            logger.debug("put message " + job.getMessageId() + " to queue");
+        } catch (BotException e) {
             logger.error(e.getMessage(), e);
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
-    public static void forwardMessage(long chatIdTo, TdApi.UpdateNewMessage message, String title, int date) throws SQLException {
-        // here is potentially message can be forwarded twice.
-        if (!DbHelper.messageWasForwarderToChannel(dataSource, message.message.id, chatIdTo)) {
-            TdApi.InputMessageContent inputMessageContent = createNewMessage(message, title, date);
-            Client robin = getNextClientForResend();
+    /**
+     * Schedules sending of the job when rate limits allow it.
+     *
+     * @return future completed when message is sent or rejected by telegram, failed when it can be sent later
+     */
+    public static CompletableFuture<Void> forwardMessage(ForwardJob job) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        TdApi.Function request;
+        try {
+            if (job.getKind() == ForwardJob.ContentKind.ALBUM) {
+                request = createAlbumRequest(job);
+            } else if (job.getKind() == ForwardJob.ContentKind.BATCH) {
+                request = createBatchRequest(job);
+            } else if (dedup.wasForwarded(job.getSourceChatId(), job.getMessageId(), job.getChatIdTo())) {
+                // here is potentially message can be forwarded twice.
+                request = null;
+            } else {
+                request = new TdApi.SendMessage(job.getChatIdTo(), 0, false, true, null, contentRenderer.render(job, true));
+            }
+        } catch (SQLException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+        if (request == null) {
+            result.complete(null);
+            return result;
+        }
+        scheduleSend(job, request, 0, result);
+        return result;
+    }
+
+    /**
+     * Parts forwarded before redelivery are left out, header is added to the first part only.
+     *
+     * @return request sending all album parts at once, null if all of them were forwarded
+     */
+    private static TdApi.Function createAlbumRequest(ForwardJob job) throws SQLException {
+        List<ForwardJob> items = notForwardedItems(job);
+        if (items.isEmpty()) {
+            return null;
+        }
+        TdApi.InputMessageContent[] contents = new TdApi.InputMessageContent[items.size()];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = contentRenderer.render(items.get(i), i == 0);
+        }
+        if (contents.length == 1) {
+            return new TdApi.SendMessage(job.getChatIdTo(), 0, false, true, null, contents[0]);
+        }
+        return new TdApi.SendMessageAlbum(job.getChatIdTo(), 0, false, true, contents);
+    }
+
+    /**
+     * Messages are forwarded by the link owner, as only the owner can read the source chat.
+     * Single album is forwarded as album.
+     *
+     * @return request forwarding all batch messages at once, null if all of them were forwarded
+     */
+    private static TdApi.Function createBatchRequest(ForwardJob job) throws SQLException {
+        List<ForwardJob> items = notForwardedItems(job);
+        if (items.isEmpty()) {
+            return null;
+        }
+        long[] messageIds = new long[items.size()];
+        boolean asAlbum = items.size() > 1 && items.size() <= ALBUM_MAX_SIZE;
+        for (int i = 0; i < messageIds.length; i++) {
+            ForwardJob item = items.get(i);
+            messageIds[i] = item.getMessageId();
+            asAlbum &= item.getMediaAlbumId() != 0 && item.getMediaAlbumId() == items.get(0).getMediaAlbumId()
+                    && (item.getKind() == ForwardJob.ContentKind.PHOTO || item.getKind() == ForwardJob.ContentKind.VIDEO);
+        }
+        return new TdApi.ForwardMessages(job.getChatIdTo(), job.getSourceChatId(), messageIds, false, true, asAlbum);
+    }
+
+    private static List<ForwardJob> notForwardedItems(ForwardJob job) throws SQLException {
+        List<ForwardJob> items = new ArrayList<>(job.getItems().size());
+        for (ForwardJob item : job.getItems()) {
+            if (!dedup.wasForwarded(job.getSourceChatId(), item.getMessageId(), job.getChatIdTo())) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static void scheduleSend(ForwardJob job, TdApi.Function request, int floodRetries, CompletableFuture<Void> result) {
+        List<String> accounts = job.getAccount() != null ? Collections.singletonList(job.getAccount()) : getAccountsForResend();
+        if (accounts.isEmpty()) {
+            accounts = Collections.singletonList(BOT_OWNER);
+            logger.error("no client configured for round-robin, will use admin account");
+        }
+        List<String> candidates = workerSelector.candidates(accounts);
+        if (candidates.isEmpty()) {
+            // queue delivers the job again when an account may be ready
+            result.completeExceptionally(new BotException("no account ready to send message " + job.getMessageId()
+                    + " to chat " + job.getChatIdTo() + " of " + accounts));
+            return;
+        }
+        // of accounts available at the same time the less loaded one is taken
+        RateLimiter.Reservation reservation = rateLimiter.reserve(candidates, job.getChatIdTo());
+        workerSelector.selected(reservation.getAccount());
+        sendScheduler.schedule(() -> {
+            if (rateLimiter.isCooling(reservation.getAccount()) || !workerSelector.isReady(reservation.getAccount())) {
+                // account got flood wait or was closed after the reservation
+                scheduleSend(job, request, floodRetries, result);
+                return;
+            }
+            Client robin = openSessions.getOrDefault(reservation.getAccount(), worker);
             if (robin == null) {
-                robin = worker;
-                logger.error("no client configured for round-robin, will use admin account");
+                // worker is not started yet or was reset, queue delivers the job again
+                result.completeExceptionally(new BotException("no client to send message " + job.getMessageId()
+                        + " to chat " + job.getChatIdTo() + " by " + reservation.getAccount()));
+                return;
             }
-            robin.send(new TdApi.SendMessage(chatIdTo, 0, false, true, null, inputMessageContent), res -> {
-                if (res.getConstructor() == TdApi.Error.CONSTRUCTOR) {
-                    TdApi.Error error = (TdApi.Error) res;
-                    logger.error(error.code + " : " + error.message);
-                } else {
-                    logger.debug("message " + message.message.id + " from chat " + message.message.chatId + " was forwarded to chat " + chatIdTo);
-                    try {
-                        DbHelper.addForwardedMessage(dataSource, message.message.id, chatIdTo);
-                    } catch (SQLException ex) {
-                        logger.error(ex.getMessage(), ex);
+            long start = workerSelector.started(reservation.getAccount());
+            CompletableFuture<TdApi.Object> sent;
+            try {
+                sent = robin.sendAsync(request, QUERY_TIMEOUT);
+            } catch (RuntimeException ex) {
+                workerSelector.completed(reservation.getAccount(), start, true);
+                result.completeExceptionally(ex);
+                return;
+            }
+            sent.whenComplete((res, failure) -> {
+                workerSelector.completed(reservation.getAccount(), start, failure != null);
+                try {
+                    if (failure instanceof TdlibException) {
+                        TdApi.Error error = ((TdlibException) failure).getError();
+                        int retryAfter = RateLimiter.parseRetryAfter(error.code, error.message);
+                        if (retryAfter >= 0) {
+                            Metrics.counter("flood_wait." + reservation.getAccount()).increment();
+                            rateLimiter.cooldown(reservation.getAccount(), retryAfter);
+                            if (floodRetries < FLOOD_MAX_RETRIES) {
+                                logger.warn("account " + reservation.getAccount() + " cools down for " + retryAfter + " seconds, message " + job.getMessageId() + " will be sent again");
+                                // job stays unacknowledged in the queue until it is sent, later jobs of the chat wait for it
+                                scheduleSend(job, request, floodRetries + 1, result);
+                                return;
+                            }
+                            floodExhausted.increment();
+                            // job is not acknowledged as sent, queue delivers it again and drops it after its redeliveries
+                            result.completeExceptionally(new BotException("message " + job.getMessageId() + " to chat "
+                                    + job.getChatIdTo() + " is not sent after " + floodRetries + " flood waits"));
+                            return;
+                        } else if (error.code < 400 || error.code >= 500) {
+                            // server error or closed client, message can be sent later
+                            result.completeExceptionally(new BotException("message " + job.getMessageId() + " to chat "
+                                    + job.getChatIdTo() + " is not sent: " + error.code + " : " + error.message, failure));
+                            return;
+                        } else {
+                            // request is rejected, sending it again gives the same error
+                            logger.error("message " + job.getMessageId() + " to chat " + job.getChatIdTo() + " is dropped: " + error.code + " : " + error.message);
+                        }
+                    } else if (failure != null) {
+                        // timeout or failure of the client, message can be sent later
+                        result.completeExceptionally(new BotException("message " + job.getMessageId() + " to chat "
+                                + job.getChatIdTo() + " is not sent: " + failure.getMessage(), failure));
+                        return;
+                    } else {
+                        logger.debug("message " + job.getMessageId() + " from chat " + job.getSourceChatId() + " was forwarded to chat " + job.getChatIdTo());
+                        startup.forwarded();
+                        if (res.getConstructor() == TdApi.Messages.CONSTRUCTOR) {
+                            // messages which can not be forwarded are returned as null, they are not tried again
+                            long skipped = Arrays.stream(((TdApi.Messages) res).messages).filter(Objects::isNull).count();
+                            if (skipped > 0) {
+                                logger.warn(skipped + " messages of " + job + " were not forwarded");
+                            }
+                        }
+                        if (job.getItems() != null) {
+                            for (ForwardJob item : job.getItems()) {
+                                dedup.markForwarded(job.getSourceChatId(), item.getMessageId(), job.getChatIdTo());
+                            }
+                        } else {
+                            dedup.markForwarded(job.getSourceChatId(), job.getMessageId(), job.getChatIdTo());
+                        }
                     }
+                } catch (RuntimeException ex) {
+                    logger.error(ex.getMessage(), ex);
                 }
-            }, error -> {
-                logger.error(error.getMessage(), error);
+                result.complete(null);
             });
+        }, reservation.getDelayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return cached name of chat or user, expired name is removed
+     */
+    private static ExpiryEntity getChannelName(long id) {
+        ExpiryEntity name = channelNameStorage.get(id);
+        if (name != null && name.getExpireTime().isBefore(LocalDateTime.now())) {
+            channelNameStorage.remove(id, name);
+            return null;
         }
+        return name;
     }
 
-    private static Client getNextClientForResend() {
-        int count = 0;
-        Client client = null;
-        while (count++ < WORKERS.length) {
-            String robin = WORKERS[currentWorkerIndex.getAndAdd(1)];
-            if (currentWorkerIndex.get() >= WORKERS.length) {
-                currentWorkerIndex.set(0);
+    /**
+     * Names of chats which are not read again are not removed by getChannelName.
+     */
+    private static void expireChannelNames() {
+        LocalDateTime now = LocalDateTime.now();
+        channelNameStorage.entrySet().removeIf(entry -> entry.getValue().getExpireTime().isBefore(now));
+    }
+
+    /**
+     * Trims files of accounts with relay profile and refreshes storage statistics of all accounts.
+     */
+    private static void maintainStorage() {
+        Map<String, Client> clients = new LinkedHashMap<>(openSessions);
+        if (bot != null) {
+            clients.put("bot", bot);
+        }
+        clients.forEach((name, client) -> {
+            TdApi.OptimizeStorage optimize = profiles.getOrDefault(name, TdlibProfile.FULL).optimizeStorage(STORAGE_MAX_SIZE, STORAGE_TTL);
+            if (optimize != null) {
+                client.send(optimize, res -> {
+                    if (res.getConstructor() == TdApi.Error.CONSTRUCTOR) {
+                        logger.warn("storage of " + name + " is not optimized: " + ((TdApi.Error) res).message);
+                    } else {
+                        logger.debug("storage of " + name + " optimized");
+                    }
+                });
             }
-            client = openSessions.get(robin);
-            if (client != null) {
-                return client;
+            client.send(new TdApi.GetStorageStatisticsFast(), res -> {
+                if (res.getConstructor() == TdApi.StorageStatisticsFast.CONSTRUCTOR) {
+                    storageStatistics.put(name, (TdApi.StorageStatisticsFast) res);
+                } else {
+                    logger.warn("no storage statistics of " + name + " : " + res);
+                }
+            });
+        });
+    }
+
+    private static void expireForwardedMessages() {
+        try {
+            LocalDate firstDayToKeep = LocalDate.now(ZoneOffset.UTC).minusDays(RETENTION_DAYS);
+            int partitionsBefore = forwardedMessagePartitions.get().size();
+            int rows = forwardedMessagePartitions.expire(firstDayToKeep);
+            if (forwardedMessagePartitions.get().size() != partitionsBefore) {
+                logger.info("forwarded messages before " + firstDayToKeep + " expired, " + rows + " records reclaimed");
+                dedup.rebuildBloomFilter();
+            }
+        } catch (SQLException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+    private static void refreshRoutes() {
+        try {
+            routingIndex.reload(dataSource);
+            logger.debug("routes reloaded, count: " + routingIndex.size());
+            updateReadiness();
+        } catch (SQLException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+    private static List<String> getAccountsForResend() {
+        List<String> accounts = new ArrayList<>(WORKERS.length);
+        for (String phone : WORKERS) {
+            if (authorizedAccounts.contains(phone) && openSessions.containsKey(phone)) {
+                accounts.add(phone);
             }
         }
-        return null;
+        return accounts;
     }
 
     private static String getFormattedName(TdApi.User user) {
@@ -370,36 +882,21 @@ public class Bot implements Runnable, AutoCloseable {
         return username.trim();
     }
 
-    private static TdApi.TextEntity[] shiftEntity(TdApi.TextEntity[] entities, int length) {
-        for (int i = 0; i < entities.length; i++) {
-            entities[i].offset += length;
-        }
-        return entities;
-    }
-
     public static void onAuthorizationStateUpdated(TdApi.AuthorizationState authorizationState, String phone, long clientId) {
         switch (authorizationState.getConstructor()) {
             case TdApi.AuthorizationStateWaitTdlibParameters.CONSTRUCTOR:
 
-                TdApi.TdlibParameters parameters = new TdApi.TdlibParameters();
-                parameters.databaseDirectory = "tdlib/" + phone;
-                parameters.useMessageDatabase = true;
-                parameters.useSecretChats = true;
+                TdlibProfile profile = profiles.getOrDefault(phone, TdlibProfile.FULL);
+                TdApi.TdlibParameters parameters = profile.parameters("tdlib/" + phone);
                 try {
                     parameters.apiId = Config.getIntValue("app.id");
                     parameters.apiHash = Config.getValue("app.hash");
                 } catch (BotException ex) {
                     logger.error(ex.getMessage(), ex);
                 }
-                parameters.systemLanguageCode = "en";
-                parameters.deviceModel = "Desktop";
-                parameters.systemVersion = "Unknown";
-                parameters.applicationVersion = "1.0";
-                parameters.enableStorageOptimizer = true;
-                parameters.useTestDc = false;
 
                 openSessions.get(phone).send(new TdApi.SetTdlibParameters(parameters), new AuthorizationRequestHandler(clientId));
-                logger.info("set tdlib parameters for " + phone);
+                logger.info("set tdlib parameters for " + phone + ", profile " + profile);
                 break;
             case TdApi.AuthorizationStateWaitEncryptionKey.CONSTRUCTOR:
                 openSessions.get(phone).send(new TdApi.CheckDatabaseEncryptionKey(), new AuthorizationRequestHandler(clientId));
@@ -411,15 +908,22 @@ public class Bot implements Runnable, AutoCloseable {
                 break;
             }
             case TdApi.AuthorizationStateWaitCode.CONSTRUCTOR: { // сюда заходим если требуется авторизация по коду
+                // waiting for user must not hold back opening of other sessions
+                startup.failed(phone);
                 // запрашиваем у пользоветеля код
+                // ждем код 3 мин, он должен поступить через интерфейс бота
+                requestUserInput(codeRequests, phone, "code").thenAccept(code -> {
+                    openSessions.get(phone).send(new TdApi.CheckAuthenticationCode(code, "", ""), new AuthorizationRequestHandler(clientId));
+                    logger.info("send code " + code + " for auth " + phone);
+                });
 
                 Session session = null;
                 try {
-                    session = DbHelper.getSessionByPhone(dataSource, phone);
+                    session = sessionStore.getByPhone(phone);
                     if (session != null) {
                         session.setAuthState(State.CONFIRM_AUTH);
                         session.setCurrentAction("auth_code");
-                        DbHelper.save(dataSource, session);
+                        sessionStore.save(session);
                     }
 
                 } catch (SQLException ex) {
@@ -430,18 +934,23 @@ public class Bot implements Runnable, AutoCloseable {
                 }
 
                 logger.debug("waiting code to confirm auth for " + phone);
-                executor.submit(() -> waitCodeForPhone(phone, clientId)); // ждем код 3 мин, он должен поступить через интерфейс бота
                 break;
             }
             case TdApi.AuthorizationStateWaitPassword.CONSTRUCTOR: { // сюда заходим если требуется авторизация по паролю
+                startup.failed(phone);
                 // запрашиваем у пользоветеля пароль
+                // ждем пароль 3 мин, он должен поступить через интерфейс бота
+                requestUserInput(passwordRequests, phone, "password").thenAccept(pass -> {
+                    openSessions.get(phone).send(new TdApi.CheckAuthenticationPassword(pass), new AuthorizationRequestHandler(clientId));
+                    logger.info("send password *** for " + phone);
+                });
                 Session session = null;
                 try {
-                    session = DbHelper.getSessionByPhone(dataSource, phone);
+                    session = sessionStore.getByPhone(phone);
                     if (session != null) {
                         session.setAuthState(State.CONFIRM_AUTH);
                         session.setCurrentAction("auth_password");
-                        DbHelper.save(dataSource, session);
+                        sessionStore.save(session);
                     }
 
                 } catch (SQLException ex) {
@@ -453,22 +962,25 @@ public class Bot implements Runnable, AutoCloseable {
 
 
                 logger.debug("waiting password to confirm auth for " + phone);
-                executor.submit(() -> waitPasswordForPhone(phone, clientId)); // ждем пароль 3 мин, он должен поступить через интерфейс бота
                 break;
             }
             case TdApi.AuthorizationStateReady.CONSTRUCTOR:
                 logger.info("Authorised " + phone);
+                authorizedAccounts.add(phone);
+                workerSelector.ready(phone);
+                startup.ready(phone);
+                updateReadiness();
                 openSessions.get(phone).send(new TdApi.GetMe(), res -> {
                     TdApi.User user = (TdApi.User) res;
                     int authClientId = user.id;
                     logger.debug("authorized client id = " + authClientId);
                     try {
-                        Session session = DbHelper.getSessionByClientId(dataSource, authClientId);
+                        Session session = sessionStore.getByClientId(authClientId);
                         session.setPhone(phone);
                         session.setAuthState(State.AUTHORIZED);
                         session.setFirstParam("");
                         session.setCurrentAction("");
-                        DbHelper.save(dataSource, session);
+                        sessionStore.save(session);
                         String username = getFormattedName(user);
                         DbHelper.updateUserName(dataSource, phone, username);
                     } catch (SQLException ex) {
@@ -479,24 +991,37 @@ public class Bot implements Runnable, AutoCloseable {
                 break;
             case TdApi.AuthorizationStateLoggingOut.CONSTRUCTOR:
                 logger.info("Logging out... " + phone);
+                authorizedAccounts.remove(phone);
+                workerSelector.notReady(phone);
+                updateReadiness();
                 break;
             case TdApi.AuthorizationStateClosing.CONSTRUCTOR:
                 logger.info("Closing... " + phone);
+                authorizedAccounts.remove(phone);
+                workerSelector.notReady(phone);
+                updateReadiness();
                 break;
             case TdApi.AuthorizationStateClosed.CONSTRUCTOR:
                 logger.info("Closed " + phone);
+                authorizedAccounts.remove(phone);
+                workerSelector.notReady(phone);
+                startup.failed(phone);
+                updateReadiness();
                 Client client = openSessions.remove(phone);
                 if (client != null) {
-                    client.close();
+                    // handler may run on the receiving thread, the client must not be waited for forever there
+                    if (!client.close(CLIENT_CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                        logger.warn("client of " + phone + " is not closed in " + CLIENT_CLOSE_TIMEOUT + " s");
+                    }
                 }
                 try {
-                    Session session = DbHelper.getSessionByPhone(dataSource, phone);
+                    Session session = sessionStore.getByPhone(phone);
                     if (session != null) {
                         session.setPhone(phone);
                         session.setAuthState(State.LOGIN);
                         session.setFirstParam("");
                         session.setCurrentAction("");
-                        DbHelper.save(dataSource, session);
+                        sessionStore.save(session);
                     }
                 } catch (SQLException ex) {
                     logger.error(ex.getMessage(), ex);
@@ -513,23 +1038,13 @@ public class Bot implements Runnable, AutoCloseable {
         switch (authorizationState.getConstructor()) {
             case TdApi.AuthorizationStateWaitTdlibParameters.CONSTRUCTOR:
 
-                TdApi.TdlibParameters parameters = new TdApi.TdlibParameters();
-                parameters.databaseDirectory = "tdlib/BOT";
-                parameters.useMessageDatabase = true;
-                parameters.useSecretChats = true;
+                TdApi.TdlibParameters parameters = profiles.getOrDefault("bot", TdlibProfile.FULL).parameters("tdlib/BOT");
                 try {
                     parameters.apiId = Config.getIntValue("app.id");
                     parameters.apiHash = Config.getValue("app.hash");
                 } catch (BotException ex) {
                     logger.error(ex.getMessage(), ex);
                 }
-                parameters.systemLanguageCode = "en";
-                parameters.deviceModel = "Desktop";
-                parameters.systemVersion = "Unknown";
-                parameters.applicationVersion = "1.0";
-                parameters.enableStorageOptimizer = true;
-                parameters.useTestDc = false;
-
 
                 bot.send(new TdApi.SetTdlibParameters(parameters), new AuthorizationRequestHandler(clientId));
                 logger.info("set tdlib parameters for BOT");
@@ -562,46 +1077,31 @@ public class Bot implements Runnable, AutoCloseable {
     }
 
 
-    private static void waitPasswordForPhone(String phone, long clientId) {
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < (3 * 60 * 1000)) {
-            if (passwordStorage.containsKey(phone)) {
-                String pass = passwordStorage.get(phone).getValue();
-                passwordStorage.remove(phone);
-                openSessions.get(phone).send(new TdApi.CheckAuthenticationPassword(pass), new AuthorizationRequestHandler(clientId));
-                logger.info("send password *** for " + phone);
-                return;
-            }
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                logger.error(e.getMessage(), e);
-                break;
-            }
+    /**
+     * @return future completed with the text entered by user, it is cancelled if nothing is entered in 3 minutes
+     */
+    private static CompletableFuture<String> requestUserInput(ConcurrentMap<String, CompletableFuture<String>> requests, String phone, String what) {
+        CompletableFuture<String> request = new CompletableFuture<>();
+        CompletableFuture<String> old = requests.put(phone, request);
+        if (old != null) {
+            old.cancel(false);
         }
-        logger.debug("no password received in 3 minutes, give up");
-    }
-
-
-    private static void waitCodeForPhone(String phone, long clientId) {
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < (3 * 60 * 1000)) {
-            if (codeStorage.containsKey(phone)) {
-                String code = codeStorage.get(phone).getValue();
-                codeStorage.remove(phone);
-                openSessions.get(phone).send(new TdApi.CheckAuthenticationCode(code, "", ""), new AuthorizationRequestHandler(clientId));
-                logger.info("send code " + code + " for auth " + phone);
-                return;
+        scheduler.schedule(() -> {
+            if (requests.remove(phone, request)) {
+                request.cancel(false);
+                logger.debug("no " + what + " received in 3 minutes, give up");
             }
+        }, 3, TimeUnit.MINUTES);
+        return request;
+    }
 
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                logger.error(e.getMessage(), e);
-                break;
-            }
+    private static void completeUserInput(ConcurrentMap<String, CompletableFuture<String>> requests, String phone, String value) {
+        CompletableFuture<String> request = requests.remove(phone);
+        if (request != null) {
+            request.complete(value);
+        } else {
+            logger.debug("input from " + phone + " is not expected now");
         }
-        logger.debug("no code received in 3 minutes, give up");
     }
 
     public static void onNewBotMessage(TdApi.UpdateNewMessage message) {
@@ -609,7 +1109,8 @@ public class Bot implements Runnable, AutoCloseable {
 
         if (message.message.senderUserId != BOT_ID) {
             try {
-                replyToUser(message);
+                // handler may save the session several times, it is written once
+                sessionStore.command(() -> replyToUser(message));
             } catch (SQLException e) {
                 logger.error(e.getMessage(), e);
             }
@@ -620,7 +1121,7 @@ public class Bot implements Runnable, AutoCloseable {
 
     private static void replyToUser(TdApi.UpdateNewMessage userMessage) throws SQLException {
 
-        Session session = DbHelper.getSessionByClientId(dataSource, userMessage.message.senderUserId);
+        Session session = sessionStore.getByClientId(userMessage.message.senderUserId);
         switch (userMessage.message.content.getConstructor()) {
             case TdApi.MessageText.CONSTRUCTOR:
                 TdApi.MessageText mess = (TdApi.MessageText) userMessage.message.content;
@@ -638,6 +1139,8 @@ public class Bot implements Runnable, AutoCloseable {
                     handleCreateCommand(session);
                 } else if ("/delete".equals(command)) {
                     handleDeleteCommand(session);
+                } else if ("/batch".equals(command)) {
+                    handleBatchCommand(session);
                 } else if ("/create_destination".equals(command)) {
                     handleCreateDestinationCommand(session);
                 } else if ("/delete_destination".equals(command)) {
@@ -663,16 +1166,18 @@ public class Bot implements Runnable, AutoCloseable {
                         handleLoginAction(session, mess.text.text);
                     } else if ("auth_code".equals(session.getCurrentAction())) {
                         logger.debug("handle " + session.getCurrentAction());
-                        codeStorage.put(session.getPhone(), new ExpiryEntity(mess.text.text.substring(0, 5), LocalDateTime.now().plusMinutes(5)));
+                        completeUserInput(codeRequests, session.getPhone(), mess.text.text.substring(0, 5));
                     } else if ("auth_password".equals(session.getCurrentAction())) {
                         logger.debug("handle " + session.getCurrentAction());
-                        passwordStorage.put(session.getPhone(), new ExpiryEntity(mess.text.text, LocalDateTime.now().plusMinutes(5)));
+                        completeUserInput(passwordRequests, session.getPhone(), mess.text.text);
                     } else if ("create_source".equals(session.getCurrentAction())) {
                         handleCreateSource(session, userMessage.message);
                     } else if ("create_destination".equals(session.getCurrentAction())) {
                         handleCreateDestination(session, mess.text.text);
                     } else if ("delete_link".equals(session.getCurrentAction())) {
                         handleDeleteLink(session, mess.text.text);
+                    } else if ("batch_link".equals(session.getCurrentAction())) {
+                        handleBatchLink(session, mess.text.text);
                     } else if ("create_destination_source".equals(session.getCurrentAction()) && BOT_OWNER.equals(session.getPhone())) {
                         handleCreateDestinationSource(session, userMessage.message);
                     } else if ("delete_destination_source".equals(session.getCurrentAction()) && BOT_OWNER.equals(session.getPhone())) {
@@ -723,7 +1228,7 @@ public class Bot implements Runnable, AutoCloseable {
                 return;
             }
             session.setCurrentAction("select_delete_permission");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[users.size()][1];
             for (int i = 0; i < users.size(); i++) {
                 rows[i][0] = new TdApi.KeyboardButton(users.get(i).toString(), new TdApi.KeyboardButtonTypeText());
@@ -746,7 +1251,7 @@ public class Bot implements Runnable, AutoCloseable {
                 return;
             }
             session.setCurrentAction("select_create_permission");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[users.size()][1];
             for (int i = 0; i < users.size(); i++) {
                 rows[i][0] = new TdApi.KeyboardButton(users.get(i).toString(), new TdApi.KeyboardButtonTypeText());
@@ -769,7 +1274,7 @@ public class Bot implements Runnable, AutoCloseable {
                 return;
             }
             session.setCurrentAction("list_permission");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[users.size()][1];
             for (int i = 0; i < users.size(); i++) {
                 rows[i][0] = new TdApi.KeyboardButton(users.get(i).toString(), new TdApi.KeyboardButtonTypeText());
@@ -788,7 +1293,7 @@ public class Bot implements Runnable, AutoCloseable {
         logger.debug("handle " + session.getCurrentAction());
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             session.setCurrentAction("");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             try {
                 List<Chat> allowedChats = DbHelper.getAllowedDestinations(dataSource, text.split(" ")[0]);
                 if (allowedChats.isEmpty()) {
@@ -811,13 +1316,13 @@ public class Bot implements Runnable, AutoCloseable {
             List<Chat> destinations = DbHelper.getAllPossibleDestinations(dataSource);
             if (destinations.isEmpty()) {
                 session.setCurrentAction("");
-                DbHelper.save(dataSource, session);
+                sessionStore.save(session);
                 replyToUser(session.getClientId(), "No destinations, try to add some with /create_destination");
                 return;
             }
             session.setFirstParam(message.split(" ")[0]);
             session.setCurrentAction("create_permission");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[destinations.size()][1];
             for (int i = 0; i < destinations.size(); i++) {
                 rows[i][0] = new TdApi.KeyboardButton(destinations.get(i).getName(), new TdApi.KeyboardButtonTypeText());
@@ -837,9 +1342,10 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             try {
                 boolean isOk = DbHelper.allowDestinationToUser(dataSource, message, session.getFirstParam());
+                refreshRoutes();
                 session.setFirstParam("");
                 session.setCurrentAction("");
-                DbHelper.save(dataSource, session);
+                sessionStore.save(session);
                 if (isOk) {
                     replyToUser(session.getClientId(), "Permission granted.");
                 } else {
@@ -861,13 +1367,13 @@ public class Bot implements Runnable, AutoCloseable {
             List<Chat> destinations = DbHelper.getAllowedDestinations(dataSource, message.split(" ")[0]);
             if (destinations.isEmpty()) {
                 session.setCurrentAction("");
-                DbHelper.save(dataSource, session);
+                sessionStore.save(session);
                 replyToUser(session.getClientId(), "No allowed destination for " + message + ", nothing to do");
                 return;
             }
             session.setFirstParam(message.split(" ")[0]);
             session.setCurrentAction("delete_permission");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[destinations.size()][1];
             for (int i = 0; i < destinations.size(); i++) {
                 rows[i][0] = new TdApi.KeyboardButton(destinations.get(i).getName(), new TdApi.KeyboardButtonTypeText());
@@ -887,9 +1393,10 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             try {
                 boolean isOk = DbHelper.denyDestinationToUser(dataSource, message, session.getFirstParam());
+                refreshRoutes();
                 session.setFirstParam("");
                 session.setCurrentAction("");
-                DbHelper.save(dataSource, session);
+                sessionStore.save(session);
                 if (isOk) {
                     replyToUser(session.getClientId(), "Permission revoked.");
                 } else {
@@ -909,7 +1416,7 @@ public class Bot implements Runnable, AutoCloseable {
         logger.debug("handle " + session.getCurrentAction());
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             session.setCurrentAction("");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             try {
                 DbHelper.createUser(dataSource, text);
                 replyToUser(session.getClientId(), "User created");
@@ -926,8 +1433,9 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
 
             session.setCurrentAction("");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             int rows = DbHelper.deleteDestinationByName(dataSource, text);
+            refreshRoutes();
             if (rows >= 1) {
                 replyToUser(session.getClientId(), "Deleted destination channel : " + text);
             } else {
@@ -943,7 +1451,7 @@ public class Bot implements Runnable, AutoCloseable {
         logger.debug("handle " + session.getCurrentAction());
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             session.setCurrentAction("");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
 
             int rows = DbHelper.deleteUser(dataSource, text);
             if (rows == 1) {
@@ -969,7 +1477,7 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             if (message.forwardInfo != null && message.forwardInfo.origin instanceof TdApi.MessageForwardOriginChannel) {
                 session.setCurrentAction("");
-                DbHelper.save(dataSource, session);
+                sessionStore.save(session);
 
                 final TdApi.MessageForwardOriginChannel channel = (TdApi.MessageForwardOriginChannel) message.forwardInfo.origin;
 
@@ -1002,6 +1510,7 @@ public class Bot implements Runnable, AutoCloseable {
         logger.debug("handle " + session.getCurrentAction());
         if (session.getAuthState() == State.AUTHORIZED) {
             int rowsCount = DbHelper.deleteLinkByName(dataSource, session.getPhone(), text);
+            refreshRoutes();
             if (rowsCount >= 1) {
                 replyToUser(session.getClientId(), "Link deleted");
             } else {
@@ -1012,6 +1521,25 @@ public class Bot implements Runnable, AutoCloseable {
         }
     }
 
+    private static void handleBatchLink(Session session, String text) throws SQLException {
+        logger.debug("handle " + session.getCurrentAction());
+        if (session.getAuthState() == State.AUTHORIZED) {
+            session.setCurrentAction("");
+            sessionStore.save(session);
+            Boolean batch = DbHelper.switchLinkBatchByName(dataSource, session.getPhone(), text);
+            refreshRoutes();
+            if (batch == null) {
+                replyToUser(session.getClientId(), "Link not found");
+            } else if (batch) {
+                replyToUser(session.getClientId(), "Messages of the link will be forwarded in batches");
+            } else {
+                replyToUser(session.getClientId(), "Messages of the link will be sent one by one");
+            }
+        } else {
+            replyToUser(session.getClientId(), "not authorized to change link");
+        }
+    }
+
     private static void handleCreateDestination(Session session, String text) throws SQLException {
         logger.debug("handle " + session.getCurrentAction());
         if (session.getAuthState() == State.AUTHORIZED) {
@@ -1022,9 +1550,10 @@ public class Bot implements Runnable, AutoCloseable {
             if (dest != null) {
                 session.setCurrentAction("");
                 session.setFirstParam("");
-                DbHelper.save(dataSource, session);
+                sessionStore.save(session);
 
                 DbHelper.createLink(dataSource, session.getPhone(), source, sourceTitle, dest);
+                refreshRoutes();
                 replyToUser(session.getClientId(), "New link created : " + sourceTitle + " -> " + dest.getName());
             } else {
                 replyToUser(session.getClientId(), "Destination was not found");
@@ -1046,7 +1575,7 @@ public class Bot implements Runnable, AutoCloseable {
                     try {
                         session.setFirstParam(String.valueOf(channel.chatId) + "_" + chat.title);
                         session.setCurrentAction("create_destination");
-                        DbHelper.save(dataSource, session);
+                        sessionStore.save(session);
                         List<Chat> destinations = DbHelper.getAllowedDestinations(dataSource, session.getPhone());
                         TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[destinations.size()][1];
                         for (int i = 0; i < destinations.size(); i++) {
@@ -1076,7 +1605,7 @@ public class Bot implements Runnable, AutoCloseable {
             session.setPhone(text);
             session.setAuthState(State.CONFIRM_AUTH);
             session.setCurrentAction("");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
             createClient(text, session.getClientId());
         } else {
             logger.debug("phone not allowed");
@@ -1088,7 +1617,7 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             replyToUser(session.getClientId(), "Input user phone to delete");
             session.setCurrentAction("delete_user");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
         } else {
             replyToUser(session.getClientId(), "Not authorized to delete user");
         }
@@ -1098,7 +1627,7 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             replyToUser(session.getClientId(), "Input user phone to create");
             session.setCurrentAction("create_user");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
         } else {
             replyToUser(session.getClientId(), "Not authorized to create user");
         }
@@ -1142,7 +1671,7 @@ public class Bot implements Runnable, AutoCloseable {
             List<Chat> destinations = DbHelper.getAllPossibleDestinations(dataSource);
 
             session.setCurrentAction("delete_destination_source");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
 
             TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[destinations.size()][1];
             for (int i = 0; i < destinations.size(); i++) {
@@ -1164,7 +1693,7 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED && BOT_OWNER.equals(session.getPhone())) {
             replyToUser(session.getClientId(), "Forward message from source channel");
             session.setCurrentAction("create_destination_source");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
         } else {
             replyToUser(session.getClientId(), "Not authorized to create destination");
         }
@@ -1174,7 +1703,7 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED) {
 
             session.setCurrentAction("delete_link");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
 
             List<Chat> ownChats = DbHelper.getOwnChats(dataSource, session.getPhone());
 
@@ -1194,17 +1723,41 @@ public class Bot implements Runnable, AutoCloseable {
         }
     }
 
+    private static void handleBatchCommand(Session session) throws SQLException {
+        if (session.getAuthState() == State.AUTHORIZED) {
+
+            session.setCurrentAction("batch_link");
+            sessionStore.save(session);
+
+            List<Chat> ownChats = DbHelper.getOwnChats(dataSource, session.getPhone());
+
+            TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[ownChats.size()][1];
+            for (int i = 0; i < ownChats.size(); i++) {
+                rows[i][0] = new TdApi.KeyboardButton(ownChats.get(i).getName(), new TdApi.KeyboardButtonTypeText());
+            }
+            TdApi.ReplyMarkupShowKeyboard keyboard = new TdApi.ReplyMarkupShowKeyboard(rows, true, true, true);
+            TdApi.InputMessageContent text = new TdApi.InputMessageText(new TdApi.FormattedText("Select link to switch batch mode", null), true, true);
+            bot.send(new TdApi.SendMessage(session.getClientId(), 0, false, false, keyboard, text), object -> {
+                logger.debug("sent " + object.toString());
+
+            });
+
+        } else {
+            replyToUser(session.getClientId(), "Not authorized to change links");
+        }
+    }
+
     private static void handleStartCommand(Session session) throws SQLException {
         session.setAuthState(State.LOGIN);
         session.setCurrentAction("");
         session.setPhone("");
-        DbHelper.save(dataSource, session);
+        sessionStore.save(session);
     }
 
     private static void handleLoginCommand(Session session) throws SQLException {
         session.setAuthState(State.LOGIN);
         session.setCurrentAction("login");
-        DbHelper.save(dataSource, session);
+        sessionStore.save(session);
         TdApi.KeyboardButton[][] rows = new TdApi.KeyboardButton[1][1];
         rows[0][0] = new TdApi.KeyboardButton("Phone", new TdApi.KeyboardButtonTypeRequestPhoneNumber());
         TdApi.ReplyMarkupShowKeyboard keyboard = new TdApi.ReplyMarkupShowKeyboard(rows, true, true, true);
@@ -1242,7 +1795,7 @@ public class Bot implements Runnable, AutoCloseable {
         if (session.getAuthState() == State.AUTHORIZED) {
             replyToUser(session.getClientId(), "Forward message from source channel");
             session.setCurrentAction("create_source");
-            DbHelper.save(dataSource, session);
+            sessionStore.save(session);
         } else {
             replyToUser(session.getClientId(), "Not authorized to create");
         }
@@ -1270,7 +1823,44 @@ public class Bot implements Runnable, AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        openSessions.values().forEach(Client::close);
+        if (!lifecycle.moveTo(Lifecycle.State.DRAINING)) {
+            return;
+        }
+        ShutdownCoordinator shutdown = new ShutdownCoordinator(Config.getIntValueOrDefault("shutdown.timeout", 30), TimeUnit.SECONDS);
+        if (forwardQueue != null) {
+            forwardQueue.unsubscribe();
+        }
+        if (ingest != null && !ingest.shutdown(shutdown.remainingNanos(), TimeUnit.NANOSECONDS)) {
+            logger.warn("ingest queue was not drained in time");
+        }
+        if (albums != null) {
+            albums.flushAll();
+        }
+        if (batches != null) {
+            batches.flushAll();
+        }
+        Map<String, Client> clients = new LinkedHashMap<>(openSessions);
+        if (bot != null) {
+            clients.put("bot", bot);
+        }
+        shutdown.closeAll(clients, (client, timeoutNanos) -> client.close(timeoutNanos, TimeUnit.NANOSECONDS));
+        if (clientManager != null) {
+            clientManager.close();
+        }
+        if (dispatchExecutor != null) {
+            dispatchExecutor.shutdown();
+        }
+        if (forwardQueue != null) {
+            forwardQueue.close();
+        }
+        if (forwardedMessageWriter != null) {
+            forwardedMessageWriter.close();
+        }
+        scheduler.shutdownNow();
+        sendScheduler.shutdownNow();
+        enqueueScheduler.shutdownNow();
+        maintenance.shutdownNow();
+        lifecycle.moveTo(Lifecycle.State.STOPPED);
     }
 
 
@@ -53,4 +53,11 @@ public class Config {
         }
         return Integer.parseInt(value);
     }
+
+    public static String getValueOrDefault(String name, String defaultValue) throws BotException {
+        if (props == null) {
+            throw new BotException("Config is not inited!");
+        }
+        return props.getProperty(name, defaultValue);
+    }
 }
@@ -0,0 +1,133 @@
+package ru.telebot;
+
+import org.drinkless.tdlib.TdApi;
+import ru.telebot.domain.ForwardJob;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds content of the copy of source message. Jobs of one message to different destinations get the same content
+ * instance from LRU cache, so content is built once per message and header. Job is not changed by rendering
+ * and returned content must not be changed by callers, it is shared between destinations.
+ */
+public class ContentRenderer {
+
+    private final int cacheSize;
+    private final Map<Key, TdApi.InputMessageContent> cache;
+    private final LongAdder hits = Metrics.counter("render.cache.hit");
+    private final LongAdder misses = Metrics.counter("render.cache.miss");
+
+    /**
+     * @param cacheSize rendered messages to keep, 0 disables the cache
+     */
+    public ContentRenderer(int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<Key, TdApi.InputMessageContent>(Math.min(cacheSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, TdApi.InputMessageContent> eldest) {
+                return size() > ContentRenderer.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @param withHeader add source title and date before the text, album parts except the first one go without it
+     */
+    public TdApi.InputMessageContent render(ForwardJob job, boolean withHeader) {
+        if (cacheSize == 0) {
+            return build(job, withHeader);
+        }
+        Key key = new Key(job, withHeader);
+        TdApi.InputMessageContent content;
+        synchronized (cache) {
+            content = cache.get(key);
+        }
+        if (content != null) {
+            hits.increment();
+            return content;
+        }
+        misses.increment();
+        content = build(job, withHeader);
+        synchronized (cache) {
+            cache.put(key, content);
+        }
+        return content;
+    }
+
+    static TdApi.InputMessageContent build(ForwardJob job, boolean withHeader) {
+        String header = withHeader ? job.getTitle() + " : " + job.getDate() + " \n" : "";
+        String text = job.getText() != null ? job.getText() : "";
+        TdApi.FormattedText formattedText = new TdApi.FormattedText(header + text, shiftEntities(job.getEntities(), header.length()));
+        TdApi.InputFileRemote file = new TdApi.InputFileRemote(job.getRemoteFileId());
+        switch (job.getKind()) {
+            case TEXT:
+                return new TdApi.InputMessageText(formattedText, false, true);
+            case PHOTO:
+                return new TdApi.InputMessagePhoto(file, null, null, job.getWidth(), job.getHeight(), formattedText, 0);
+            case ANIMATION:
+                return new TdApi.InputMessageAnimation(file, null, job.getDuration(), job.getWidth(), job.getHeight(), formattedText);
+            case VIDEO:
+                return new TdApi.InputMessageVideo(file, null, null, job.getDuration(), job.getWidth(), job.getHeight(), job.isSupportsStreaming(), formattedText, 0);
+            case DOCUMENT:
+                return new TdApi.InputMessageDocument(file, null, formattedText);
+            default:
+                throw new IllegalArgumentException("unsupported content kind " + job.getKind());
+        }
+    }
+
+    /**
+     * @return copies of entities moved by header length, source entities are not changed
+     */
+    static TdApi.TextEntity[] shiftEntities(TdApi.TextEntity[] entities, int length) {
+        if (entities == null) {
+            return new TdApi.TextEntity[0];
+        }
+        TdApi.TextEntity[] shifted = new TdApi.TextEntity[entities.length];
+        for (int i = 0; i < entities.length; i++) {
+            // entity type has no state changed by sending, so it is shared
+            shifted[i] = new TdApi.TextEntity(entities[i].offset + length, entities[i].length, entities[i].type);
+        }
+        return shifted;
+    }
+
+    private static final class Key {
+        private final long sourceChatId;
+        private final long messageId;
+        private final String title;
+        private final int date;
+        private final boolean withHeader;
+
+        Key(ForwardJob job, boolean withHeader) {
+            this.sourceChatId = job.getSourceChatId();
+            this.messageId = job.getMessageId();
+            this.title = job.getTitle();
+            this.date = job.getDate();
+            this.withHeader = withHeader;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sourceChatId == key.sourceChatId && messageId == key.messageId && date == key.date
+                    && withHeader == key.withHeader && Objects.equals(title, key.title);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(sourceChatId);
+            result = 31 * result + Long.hashCode(messageId);
+            result = 31 * result + date;
+            result = 31 * result + (withHeader ? 1 : 0);
+            return result;
+        }
+    }
+}
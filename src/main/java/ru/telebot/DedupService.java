@@ -0,0 +1,130 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.dao.DbHelper;
+import ru.telebot.domain.ForwardedMessage;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers "was this message already forwarded to that chat" in front of forwarded_message table.
+ * Recently forwarded keys are kept in LRU cache, Bloom filter covers the whole table,
+ * so only Bloom filter positives which are not in LRU cache go to the database.
+ * New records are written through {@link ForwardedMessageWriter} and are visible before they reach the database.
+ */
+public class DedupService {
+    private static final Logger logger = LoggerFactory.getLogger(DedupService.class);
+
+    private final DataSource ds;
+    private final ForwardedMessagePartitions partitions;
+    private final ForwardedMessageWriter writer;
+    private final Map<ForwardedMessage, Boolean> recent;
+    private final long expectedMessages;
+    private final double falsePositiveRate;
+    private volatile BloomFilter bloomFilter;
+    // filter which is filled by rebuild, new records go to both filters until rebuild is completed
+    private volatile BloomFilter building;
+
+    private final LongAdder lruHits = Metrics.counter("dedup.hit.lru");
+    private final LongAdder dbHits = Metrics.counter("dedup.hit.db");
+    private final LongAdder bloomMisses = Metrics.counter("dedup.miss.bloom");
+    private final LongAdder dbMisses = Metrics.counter("dedup.miss.db");
+
+    public DedupService(DataSource ds, ForwardedMessagePartitions partitions, ForwardedMessageWriter writer, int cacheSize, long expectedMessages, double falsePositiveRate) {
+        this.ds = ds;
+        this.partitions = partitions;
+        this.writer = writer;
+        this.expectedMessages = expectedMessages;
+        this.falsePositiveRate = falsePositiveRate;
+        this.recent = new LinkedHashMap<ForwardedMessage, Boolean>(Math.min(cacheSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ForwardedMessage, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.bloomFilter = new BloomFilter(expectedMessages, falsePositiveRate);
+    }
+
+    public void warmUp() throws SQLException {
+        long started = System.currentTimeMillis();
+        LongAdder count = new LongAdder();
+        // oldest partition first, so LRU cache ends up with the most recent records
+        List<String> oldestFirst = new ArrayList<>(partitions.get());
+        Collections.reverse(oldestFirst);
+        DbHelper.forEachForwardedMessage(ds, oldestFirst, key -> {
+            bloomFilter.put(key);
+            remember(key);
+            count.increment();
+        });
+        logger.info("dedup cache warmed up with " + count.sum() + " records in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    /**
+     * Bloom filter cannot forget keys, so it is rebuilt after expired records are dropped.
+     */
+    public synchronized void rebuildBloomFilter() throws SQLException {
+        long started = System.currentTimeMillis();
+        BloomFilter filter = new BloomFilter(expectedMessages, falsePositiveRate);
+        building = filter;
+        try {
+            writer.forEachPending(filter::put);
+            DbHelper.forEachForwardedMessage(ds, partitions.get(), filter::put);
+            bloomFilter = filter;
+        } finally {
+            building = null;
+        }
+        logger.info("dedup bloom filter rebuilt in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    public boolean wasForwarded(long sourceChatId, long messageId, long chatId) throws SQLException {
+        ForwardedMessage key = new ForwardedMessage(sourceChatId, messageId, chatId);
+        synchronized (recent) {
+            if (recent.get(key) != null) {
+                lruHits.increment();
+                return true;
+            }
+        }
+        if (writer.isPending(key)) {
+            lruHits.increment();
+            return true;
+        }
+        if (!bloomFilter.mightContain(key)) {
+            bloomMisses.increment();
+            return false;
+        }
+        if (DbHelper.messageWasForwarderToChannel(ds, partitions.get(), sourceChatId, messageId, chatId)) {
+            dbHits.increment();
+            remember(key);
+            return true;
+        }
+        dbMisses.increment();
+        return false;
+    }
+
+    public void markForwarded(long sourceChatId, long messageId, long chatId) {
+        ForwardedMessage key = new ForwardedMessage(sourceChatId, messageId, chatId, Instant.now().getEpochSecond());
+        remember(key);
+        // record becomes pending before filters are updated, so concurrent rebuild cannot miss it
+        writer.add(key);
+        BloomFilter rebuilding = building;
+        bloomFilter.put(key);
+        if (rebuilding != null) {
+            rebuilding.put(key);
+        }
+    }
+
+    private void remember(ForwardedMessage key) {
+        synchronized (recent) {
+            recent.put(key, Boolean.TRUE);
+        }
+    }
+}
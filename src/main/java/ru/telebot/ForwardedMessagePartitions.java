@@ -0,0 +1,81 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.dao.DbHelper;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps list of daily forwarded_message_yyyyMMdd tables. Records older than retention window are removed
+ * by dropping the whole partition, so database is not locked by a long row by row delete.
+ */
+public class ForwardedMessagePartitions {
+    private static final Logger logger = LoggerFactory.getLogger(ForwardedMessagePartitions.class);
+
+    private final DataSource ds;
+    // newest partition first, most of lookups are for recent messages
+    private volatile List<String> partitions = Collections.emptyList();
+
+    private final LongAdder droppedPartitions = Metrics.counter("retention.partitions_dropped");
+    private final LongAdder reclaimedRows = Metrics.counter("retention.rows_reclaimed");
+
+    public ForwardedMessagePartitions(DataSource ds) {
+        this.ds = ds;
+        Metrics.gauge("retention.partitions", () -> partitions.size());
+    }
+
+    public synchronized void reload() throws SQLException {
+        List<String> loaded = DbHelper.getForwardedMessagePartitions(ds);
+        Collections.reverse(loaded);
+        partitions = Collections.unmodifiableList(loaded);
+    }
+
+    public List<String> get() {
+        return partitions;
+    }
+
+    public void ensure(String partition) throws SQLException {
+        if (partitions.contains(partition)) {
+            return;
+        }
+        synchronized (this) {
+            if (!partitions.contains(partition)) {
+                DbHelper.createForwardedMessagePartition(ds, partition);
+                List<String> updated = new ArrayList<>(partitions);
+                updated.add(partition);
+                updated.sort(Collections.reverseOrder());
+                partitions = Collections.unmodifiableList(updated);
+                logger.info("partition " + partition + " created");
+            }
+        }
+    }
+
+    /**
+     * Drops partitions older than the first day to keep.
+     *
+     * @return count of reclaimed records
+     */
+    public synchronized int expire(LocalDate firstDayToKeep) throws SQLException {
+        int rows = 0;
+        List<String> kept = new ArrayList<>(partitions);
+        for (String partition : partitions) {
+            if (DbHelper.getForwardedMessagePartitionDay(partition).isBefore(firstDayToKeep)) {
+                int dropped = DbHelper.dropForwardedMessagePartition(ds, partition);
+                kept.remove(partition);
+                partitions = Collections.unmodifiableList(new ArrayList<>(kept));
+                droppedPartitions.increment();
+                reclaimedRows.add(dropped);
+                rows += dropped;
+                logger.info("partition " + partition + " dropped, " + dropped + " records reclaimed");
+            }
+        }
+        return rows;
+    }
+}
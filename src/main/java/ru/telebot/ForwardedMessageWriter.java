@@ -0,0 +1,113 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.dao.DbHelper;
+import ru.telebot.domain.ForwardedMessage;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind buffer for forwarded_message records. Records are written by one batched transaction
+ * every flush interval or as soon as batch size is reached, whichever comes first.
+ */
+public class ForwardedMessageWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ForwardedMessageWriter.class);
+
+    private final DataSource ds;
+    private final ForwardedMessagePartitions partitions;
+    private final int batchSize;
+    private final Set<ForwardedMessage> pending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "forwarded-message-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private List<ForwardedMessage> buffer = new ArrayList<>();
+    private boolean flushRequested = false;
+
+    private final LongAdder written = Metrics.counter("writer.rows");
+    private final Metrics.Timer flushTimer = Metrics.timer("writer.flush");
+
+    public ForwardedMessageWriter(DataSource ds, ForwardedMessagePartitions partitions, long flushIntervalMillis, int batchSize) {
+        this.ds = ds;
+        this.partitions = partitions;
+        this.batchSize = batchSize;
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        Metrics.gauge("writer.pending", pending::size);
+    }
+
+    public void add(ForwardedMessage key) {
+        pending.add(key);
+        synchronized (this) {
+            buffer.add(key);
+            if (buffer.size() >= batchSize && !flushRequested && !flusher.isShutdown()) {
+                flushRequested = true;
+                flusher.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * @return true if record is accepted, but not written to the database yet
+     */
+    public boolean isPending(ForwardedMessage key) {
+        return pending.contains(key);
+    }
+
+    public void forEachPending(Consumer<ForwardedMessage> consumer) {
+        pending.forEach(consumer);
+    }
+
+    void flush() {
+        List<ForwardedMessage> batch;
+        synchronized (this) {
+            flushRequested = false;
+            if (buffer.isEmpty()) {
+                return;
+            }
+            batch = buffer;
+            buffer = new ArrayList<>();
+        }
+        long started = System.nanoTime();
+        try {
+            for (ForwardedMessage key : batch) {
+                partitions.ensure(DbHelper.getForwardedMessagePartition(key.getForwardedAt()));
+            }
+            DbHelper.addForwardedMessages(ds, batch);
+            batch.forEach(pending::remove);
+            written.add(batch.size());
+            flushTimer.recordSince(started);
+        } catch (SQLException ex) {
+            logger.error("cannot write " + batch.size() + " forwarded messages, will retry: " + ex.getMessage(), ex);
+            synchronized (this) {
+                batch.addAll(buffer);
+                buffer = batch;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        flusher.shutdown();
+        if (!flusher.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("forwarded message writer did not stop in time");
+        }
+        // final flush runs on the caller thread, after scheduled ones are finished
+        flush();
+        if (!pending.isEmpty()) {
+            logger.error(pending.size() + " forwarded messages are not written to the database");
+        }
+    }
+}
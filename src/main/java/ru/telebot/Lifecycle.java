@@ -0,0 +1,80 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * State of the bot, components subscribe to state changes instead of polling.
+ */
+public class Lifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(Lifecycle.class);
+
+    public enum State {
+        // bot is created, clients are not started
+        STARTING,
+        // clients are started, owner account is not authorized yet or no account can send
+        WORKERS_AUTHORIZING,
+        // jobs can be sent, queue consumers are attached
+        READY,
+        // bot is closing, queue consumers are detached
+        DRAINING,
+        STOPPED
+    }
+
+    public interface Listener {
+        void onStateChanged(State from, State to);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private State state = State.STARTING;
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Listeners are called in the thread making the change, one change at a time.
+     * Bot does not go back from DRAINING and STOPPED.
+     *
+     * @return false if the bot is already in the state or stopping
+     */
+    public synchronized boolean moveTo(State to) {
+        State from = state;
+        if (from == to || from == State.STOPPED || (from == State.DRAINING && to != State.STOPPED)) {
+            return false;
+        }
+        state = to;
+        logger.info("bot state " + from + " -> " + to);
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChanged(from, to);
+            } catch (RuntimeException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }
+        if (to == State.STOPPED) {
+            stopped.countDown();
+        }
+        return true;
+    }
+
+    /**
+     * Changes state only if current state is expected one.
+     */
+    public synchronized boolean moveTo(State expected, State to) {
+        return state == expected && moveTo(to);
+    }
+
+    public void awaitStopped() throws InterruptedException {
+        stopped.await();
+    }
+}
@@ -1,10 +1,5 @@
 package ru.telebot;
 
-import org.apache.activemq.broker.BrokerFactory;
-import org.apache.activemq.broker.BrokerService;
-import org.apache.activemq.usage.MemoryUsage;
-import org.apache.activemq.usage.StoreUsage;
-import org.apache.activemq.usage.SystemUsage;
 import org.drinkless.tdlib.Client;
 import org.drinkless.tdlib.TdApi;
 import org.slf4j.Logger;
@@ -12,7 +7,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOError;
 import java.io.IOException;
-import java.net.URI;
 
 public class MainWorker {
 
@@ -35,19 +29,6 @@ public class MainWorker {
                 throw new IOError(new IOException("Write access to the file " + Config.getValue("tdlib.log_file") + " is required"));
             }
 
-            BrokerService broker = BrokerFactory.createBroker(new URI("broker:(tcp://localhost:61616)"));
-            broker.setPersistent(true);
-            SystemUsage systemUsage = new SystemUsage();
-            MemoryUsage memoryUsage = new MemoryUsage();
-            memoryUsage.setPercentOfJvmHeap(5);
-
-            systemUsage.setMemoryUsage(memoryUsage);
-            StoreUsage storeUsage = new StoreUsage();
-            storeUsage.setLimit(500 * 1024 * 1024);
-            systemUsage.setStoreUsage(storeUsage);
-            broker.setConsumerSystemUsage(systemUsage);
-            broker.start();
-
             Bot obj = null;
             try {
                 obj = new Bot();
@@ -55,17 +36,21 @@ public class MainWorker {
                 logger.error(ex.getMessage(), ex);
                 throw ex;
             }
-            Thread bot = new Thread(obj);
-            bot.start();
-            while (bot.isAlive()) {
+            final Bot bot = obj;
+            // SIGTERM and Ctrl+C close sessions and drain queues before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ex) {
-                    obj.close();
-                    bot.interrupt();
-                    Thread.sleep(100);
-                    throw ex;
+                    bot.close();
+                } catch (Exception ex) {
+                    logger.error(ex.getMessage(), ex);
                 }
+            }, "shutdown-hook"));
+            obj.run();
+            try {
+                Bot.getLifecycle().awaitStopped();
+            } catch (InterruptedException ex) {
+                obj.close();
+                throw ex;
             }
         } catch (Throwable ex) {
             logger.error(ex.getMessage(), ex);
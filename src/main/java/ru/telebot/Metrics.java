@@ -0,0 +1,110 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public static Map<String, String> snapshot() {
+        Map<String, String> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, String.valueOf(counter.sum())));
+        gauges.forEach((name, gauge) -> {
+            try {
+                result.put(name, String.valueOf(gauge.getAsLong()));
+            } catch (RuntimeException ex) {
+                result.put(name, "n/a");
+            }
+        });
+        timers.forEach((name, timer) -> result.put(name, timer.toString()));
+        return result;
+    }
+
+    /**
+     * @return resident memory of the process including TDLib native memory, -1 if it is not known
+     */
+    public static long residentKilobytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            logger.debug("resident memory is not known: " + ex.getMessage());
+        }
+        return -1;
+    }
+
+    public static void report() {
+        snapshot().forEach((name, value) -> logger.info(name + " = " + value));
+    }
+
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getAverageNanos() {
+            long c = count.sum();
+            return c == 0 ? 0 : totalNanos.sum() / c;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() +
+                    ", avg=" + TimeUnit.NANOSECONDS.toMicros(getAverageNanos()) + "us" +
+                    ", max=" + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + "us";
+        }
+    }
+}
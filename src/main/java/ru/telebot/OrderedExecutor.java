@@ -0,0 +1,152 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor made of single threaded lanes. Tasks with the same key always go to the same lane,
+ * so they are executed in submission order, tasks with different keys are executed in parallel.
+ */
+public class OrderedExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(OrderedExecutor.class);
+
+    public enum Backpressure {
+        /**
+         * submitter waits until lane has free space, nothing is lost
+         */
+        BLOCK,
+        /**
+         * task is dropped and counted
+         */
+        DROP,
+        /**
+         * task is executed by submitter, ordering for the key is not guaranteed in this case
+         */
+        CALLER_RUNS;
+
+        public static Backpressure parse(String value) {
+            return value == null ? BLOCK : valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private final String name;
+    private final ThreadPoolExecutor[] lanes;
+    private final Backpressure backpressure;
+    private final LongAdder submitted;
+    private final LongAdder dropped;
+    private final LongAdder callerRuns;
+    private final Metrics.Timer waitTimer;
+    private final Metrics.Timer runTimer;
+
+    public OrderedExecutor(String name, int laneCount, int laneCapacity, Backpressure backpressure) {
+        if (laneCount < 1 || laneCapacity < 1) {
+            throw new IllegalArgumentException("lane count and capacity should be positive");
+        }
+        this.name = name;
+        this.backpressure = backpressure;
+        this.lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            final String threadName = name + "-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneCapacity), r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }, this::onRejected);
+            final ThreadPoolExecutor lane = lanes[i];
+            Metrics.gauge(name + ".lane." + i + ".queued", () -> lane.getQueue().size());
+        }
+        submitted = Metrics.counter(name + ".submitted");
+        dropped = Metrics.counter(name + ".dropped");
+        callerRuns = Metrics.counter(name + ".caller_runs");
+        waitTimer = Metrics.timer(name + ".wait");
+        runTimer = Metrics.timer(name + ".run");
+        Metrics.gauge(name + ".queued", this::getQueueDepth);
+    }
+
+    public void execute(long key, Runnable task) {
+        final long enqueued = System.nanoTime();
+        submitted.increment();
+        lanes[laneFor(key, lanes.length)].execute(() -> {
+            long started = System.nanoTime();
+            waitTimer.record(started - enqueued);
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                logger.error(name + ": " + ex.getMessage(), ex);
+            } finally {
+                runTimer.recordSince(started);
+            }
+        });
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Stops accepting new tasks and waits until already queued tasks are completed.
+     *
+     * @return true if all lanes are drained in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int laneFor(long key, int laneCount) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (int) ((h & Long.MAX_VALUE) % laneCount);
+    }
+
+    private void onRejected(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) {
+            throw new RejectedExecutionException(name + " is shut down");
+        }
+        switch (backpressure) {
+            case BLOCK:
+                try {
+                    lane.getQueue().put(task);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(ex);
+                }
+                // lane shut down while waiting for space, task put after its workers are gone would never run
+                if (lane.isShutdown() && lane.getQueue().remove(task)) {
+                    throw new RejectedExecutionException(name + " is shut down");
+                }
+                break;
+            case DROP:
+                dropped.increment();
+                logger.warn(name + " is full, task dropped");
+                break;
+            case CALLER_RUNS:
+                callerRuns.increment();
+                task.run();
+                break;
+        }
+    }
+}
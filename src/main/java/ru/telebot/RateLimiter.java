@@ -0,0 +1,220 @@
+package ru.telebot;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Token buckets on three levels: global, per worker account and per destination chat.
+ * Send reserves a token in all three buckets at the earliest moment when all of them have one,
+ * so job waits only for buckets it needs and callers schedule the send instead of sleeping.
+ * Buckets are updated with CAS, sends of different accounts and destinations do not wait for each other.
+ */
+public class RateLimiter {
+
+    public static class Reservation {
+        private final String account;
+        private final long delayNanos;
+
+        Reservation(String account, long delayNanos) {
+            this.account = account;
+            this.delayNanos = delayNanos;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public long getDelayNanos() {
+            return delayNanos;
+        }
+    }
+
+    // "Too Many Requests: retry after 30" from TDLib, FLOOD_WAIT_30 from MTProto
+    private static final Pattern RETRY_AFTER = Pattern.compile("(?:retry after |FLOOD_WAIT_)(\\d+)");
+
+    private final Bucket global;
+    private final double accountRate;
+    private final int accountBurst;
+    private final double destinationRate;
+    private final int destinationBurst;
+    private final ConcurrentMap<String, Bucket> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Bucket> destinations = new ConcurrentHashMap<>();
+
+    private final Metrics.Timer waitTimer = Metrics.timer("rate.wait");
+    private final LongAdder limitedGlobal = Metrics.counter("rate.limited.global");
+    private final LongAdder limitedAccount = Metrics.counter("rate.limited.account");
+    private final LongAdder limitedDestination = Metrics.counter("rate.limited.destination");
+
+    /**
+     * Rates are in messages per second, rate 0 or less means the level is not limited.
+     */
+    public RateLimiter(double globalRate, int globalBurst, double accountRate, int accountBurst,
+                       double destinationRate, int destinationBurst) {
+        this.global = new Bucket(globalRate, globalBurst);
+        this.accountRate = accountRate;
+        this.accountBurst = accountBurst;
+        this.destinationRate = destinationRate;
+        this.destinationBurst = destinationBurst;
+    }
+
+    /**
+     * Takes the first candidate if it has a token now, otherwise the account which gets a token first,
+     * and reserves tokens for it.
+     *
+     * @param candidates accounts able to send, not empty, preferred one first
+     */
+    public Reservation reserve(List<String> candidates, long chatId) {
+        return reserve(candidates, chatId, System.nanoTime());
+    }
+
+    Reservation reserve(List<String> candidates, long chatId, long now) {
+        String account = candidates.get(0);
+        Bucket accountBucket = account(account);
+        long accountAt = accountBucket.availableAt(now);
+        // preferred account is replaced only when it has to wait
+        if (accountAt > now) {
+            for (int i = 1; i < candidates.size(); i++) {
+                Bucket bucket = account(candidates.get(i));
+                long at = bucket.availableAt(now);
+                if (at < accountAt) {
+                    account = candidates.get(i);
+                    accountBucket = bucket;
+                    accountAt = at;
+                }
+            }
+        }
+        Bucket destinationBucket = destinations.get(chatId);
+        if (destinationBucket == null) {
+            destinationBucket = destinations.computeIfAbsent(chatId, k -> new Bucket(destinationRate, destinationBurst));
+        }
+        long globalAt = global.availableAt(now);
+        long destinationAt = destinationBucket.availableAt(now);
+        long at = Math.max(globalAt, Math.max(accountAt, destinationAt));
+        if (at > now) {
+            if (at == globalAt) {
+                limitedGlobal.increment();
+            } else if (at == accountAt) {
+                limitedAccount.increment();
+            } else {
+                limitedDestination.increment();
+            }
+        }
+        // concurrent send can take a token first, then this send moves later and buckets taken before follow it
+        long globalTaken = global.take(at);
+        long accountTaken = accountBucket.take(globalTaken);
+        long sendAt = destinationBucket.take(accountTaken);
+        if (sendAt > globalTaken) {
+            global.usedAt(sendAt);
+        }
+        if (sendAt > accountTaken) {
+            accountBucket.usedAt(sendAt);
+        }
+        waitTimer.record(sendAt - now);
+        return new Reservation(account, sendAt - now);
+    }
+
+    /**
+     * Account gets no tokens until the moment, other accounts are selected while it cools down.
+     */
+    public void cooldown(String account, long seconds) {
+        cooldownUntil(account, System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    void cooldownUntil(String account, long untilNanos) {
+        account(account).blockedUntil.accumulateAndGet(untilNanos, (current, until) -> current == Long.MIN_VALUE ? until : Math.max(current, until));
+    }
+
+    public boolean isCooling(String account) {
+        Bucket bucket = accounts.get(account);
+        if (bucket == null) {
+            return false;
+        }
+        long blockedUntil = bucket.blockedUntil.get();
+        return blockedUntil != Long.MIN_VALUE && blockedUntil - System.nanoTime() > 0;
+    }
+
+    private Bucket account(String account) {
+        Bucket bucket = accounts.get(account);
+        if (bucket == null) {
+            bucket = accounts.computeIfAbsent(account, k -> new Bucket(accountRate, accountBurst));
+        }
+        return bucket;
+    }
+
+    /**
+     * @return seconds to wait from 429 error, -1 if error is not about flood
+     */
+    public static int parseRetryAfter(int code, String message) {
+        if (message == null) {
+            return -1;
+        }
+        Matcher matcher = RETRY_AFTER.matcher(message);
+        if (matcher.find()) {
+            return Integer.parseInt(matcher.group(1));
+        }
+        return code == 429 ? 1 : -1;
+    }
+
+    /**
+     * GCRA form of token bucket: keeps theoretical arrival time of the next token instead of token count.
+     */
+    private static class Bucket {
+        private final long interval;
+        private final long tolerance;
+        private final AtomicLong nextTokenAt = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLong blockedUntil = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(double rate, int burst) {
+            interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            tolerance = interval * (Math.max(burst, 1) - 1);
+        }
+
+        long availableAt(long now) {
+            return availableAt(now, nextTokenAt.get());
+        }
+
+        private long availableAt(long now, long next) {
+            long at = now;
+            long blocked = blockedUntil.get();
+            if (blocked != Long.MIN_VALUE && blocked - at > 0) {
+                at = blocked;
+            }
+            if (interval == 0 || next == Long.MIN_VALUE) {
+                return at;
+            }
+            return Math.max(at, next - tolerance);
+        }
+
+        /**
+         * @return moment of the taken token, not earlier than at
+         */
+        long take(long at) {
+            if (interval == 0) {
+                return availableAt(at, Long.MIN_VALUE);
+            }
+            while (true) {
+                long next = nextTokenAt.get();
+                long taken = availableAt(at, next);
+                long updated = (next == Long.MIN_VALUE ? taken : Math.max(next, taken)) + interval;
+                if (nextTokenAt.compareAndSet(next, updated)) {
+                    return taken;
+                }
+            }
+        }
+
+        /**
+         * Token is used later than it was taken, next token is not given earlier than the interval after that.
+         */
+        void usedAt(long at) {
+            if (interval != 0) {
+                nextTokenAt.accumulateAndGet(at + interval, Math::max);
+            }
+        }
+    }
+}
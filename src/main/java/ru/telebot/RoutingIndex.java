@@ -0,0 +1,122 @@
+package ru.telebot;
+
+import ru.telebot.dao.DbHelper;
+import ru.telebot.domain.Chat;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable in-memory snapshot of user_chat joined with user_permission, keyed by owner phone and source chat id.
+ * Snapshot is replaced as a whole on every reload, so readers never see half-updated routes.
+ */
+public class RoutingIndex {
+    private static final Chat[] NO_ROUTES = new Chat[0];
+
+    private volatile Map<String, AccountRoutes> snapshot = Collections.emptyMap();
+
+    public synchronized void reload(DataSource ds) throws SQLException {
+        update(DbHelper.getAllRoutes(ds));
+    }
+
+    synchronized void update(List<Chat> routes) {
+        Map<String, Map<Long, List<Chat>>> grouped = new HashMap<>();
+        for (Chat chat : routes) {
+            if (chat.getOwner() == null || chat.getChatIdFrom() == 0) {
+                continue;
+            }
+            grouped.computeIfAbsent(chat.getOwner(), owner -> new LinkedHashMap<>())
+                    .computeIfAbsent(chat.getChatIdFrom(), source -> new ArrayList<>())
+                    .add(chat);
+        }
+        Map<String, AccountRoutes> newSnapshot = new HashMap<>();
+        grouped.forEach((owner, bySource) -> newSnapshot.put(owner, new AccountRoutes(bySource)));
+        snapshot = Collections.unmodifiableMap(newSnapshot);
+    }
+
+    /**
+     * Cheap check for the common case, when message came from the chat which is not linked anywhere.
+     */
+    public boolean isSource(String phone, long chatId) {
+        AccountRoutes routes = snapshot.get(phone);
+        return routes != null && routes.indexOf(chatId) >= 0;
+    }
+
+    /**
+     * @return destinations for the source chat, returned array is shared and must not be modified
+     */
+    public Chat[] getRoutes(String phone, long chatId) {
+        AccountRoutes routes = snapshot.get(phone);
+        if (routes == null) {
+            return NO_ROUTES;
+        }
+        int index = routes.indexOf(chatId);
+        return index < 0 ? NO_ROUTES : routes.values[index];
+    }
+
+    public boolean hasRoutes(String phone) {
+        return snapshot.containsKey(phone);
+    }
+
+    public int size() {
+        int size = 0;
+        for (AccountRoutes routes : snapshot.values()) {
+            for (Chat[] chats : routes.values) {
+                if (chats != null) {
+                    size += chats.length;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Open addressing hash table from source chat id to destinations, chat id 0 marks empty slot.
+     */
+    private static final class AccountRoutes {
+        private final long[] keys;
+        private final Chat[][] values;
+        private final int mask;
+
+        AccountRoutes(Map<Long, List<Chat>> bySource) {
+            int capacity = Integer.highestOneBit(Math.max(2, bySource.size() * 2 - 1)) << 1;
+            keys = new long[capacity];
+            values = new Chat[capacity][];
+            mask = capacity - 1;
+            bySource.forEach((source, chats) -> {
+                int slot = slot(source);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = source;
+                values[slot] = chats.toArray(new Chat[0]);
+            });
+        }
+
+        int indexOf(long chatId) {
+            if (chatId == 0) {
+                return -1;
+            }
+            int slot = slot(chatId);
+            long key;
+            while ((key = keys[slot]) != 0) {
+                if (key == chatId) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int slot(long chatId) {
+            long h = chatId * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
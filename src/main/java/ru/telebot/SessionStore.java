@@ -0,0 +1,161 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.dao.DbHelper;
+import ru.telebot.domain.Session;
+import ru.telebot.domain.State;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory copy of user_session keyed by client id with index by phone, loaded on start and written through on save.
+ * Callers get copies of stored sessions, so changes are visible to others only after save.
+ * Session is cached only after it is written, so memory does not differ from database when the write fails.
+ * Saves made while a command runs are seen by the command at once and written once when it ends.
+ */
+public class SessionStore {
+    private static final Logger logger = LoggerFactory.getLogger(SessionStore.class);
+
+    public interface Command {
+        void run() throws SQLException;
+    }
+
+    private final DataSource dataSource;
+    private final ConcurrentHashMap<Long, Session> byClientId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> clientIdByPhone = new ConcurrentHashMap<>();
+    // sessions saved by the command running in the thread and not written yet, null when no command runs
+    private final ThreadLocal<Map<Long, Session>> pending = new ThreadLocal<>();
+    private final LongAdder writes = Metrics.counter("session.writes");
+
+    public SessionStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public synchronized void load() throws SQLException {
+        byClientId.clear();
+        clientIdByPhone.clear();
+        for (Session session : DbHelper.getSessions(dataSource)) {
+            cache(session);
+        }
+    }
+
+    public List<Session> getSessions() {
+        List<Session> sessions = new ArrayList<>(byClientId.size());
+        byClientId.values().forEach(session -> sessions.add(new Session(session)));
+        return sessions;
+    }
+
+    /**
+     * @return copy of the session, new not saved session in LOGIN state if client has none
+     */
+    public Session getByClientId(long clientId) {
+        Map<Long, Session> commandSessions = pending.get();
+        Session session = commandSessions != null ? commandSessions.get(clientId) : null;
+        if (session == null) {
+            session = byClientId.get(clientId);
+        }
+        if (session != null) {
+            return new Session(session);
+        }
+        session = new Session();
+        session.setAuthState(State.LOGIN);
+        session.setClientId(clientId);
+        return session;
+    }
+
+    /**
+     * @return copy of the session, null if there is no session with the phone
+     */
+    public Session getByPhone(String phone) {
+        if (phone == null) {
+            return null;
+        }
+        Map<Long, Session> commandSessions = pending.get();
+        if (commandSessions != null) {
+            for (Session session : commandSessions.values()) {
+                if (phone.equals(session.getPhone())) {
+                    return new Session(session);
+                }
+            }
+        }
+        Long clientId = clientIdByPhone.get(phone);
+        Session session = clientId != null ? byClientId.get(clientId) : null;
+        // session saved by the command with another phone is not found by its old phone
+        if (session != null && commandSessions != null && commandSessions.containsKey(session.getClientId())) {
+            return null;
+        }
+        return session != null ? new Session(session) : null;
+    }
+
+    public void save(Session session) throws SQLException {
+        Session copy = new Session(session);
+        Map<Long, Session> commandSessions = pending.get();
+        if (commandSessions != null) {
+            commandSessions.put(copy.getClientId(), copy);
+        } else {
+            write(copy);
+        }
+    }
+
+    /**
+     * Runs command of the bot user, sessions saved by it are written when it ends, each of them once.
+     * All of them are tried even if some writes fail, the first failure is thrown then.
+     */
+    public void command(Command command) throws SQLException {
+        if (pending.get() != null) {
+            command.run();
+            return;
+        }
+        Map<Long, Session> commandSessions = new LinkedHashMap<>();
+        pending.set(commandSessions);
+        SQLException failure = null;
+        try {
+            command.run();
+        } finally {
+            pending.remove();
+            for (Session session : commandSessions.values()) {
+                try {
+                    write(session);
+                } catch (SQLException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    } else {
+                        failure.addSuppressed(ex);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write(Session session) throws SQLException {
+        try {
+            DbHelper.save(dataSource, session);
+        } catch (SQLException ex) {
+            logger.error("session of " + session.getClientId() + " is not saved: " + ex.getMessage());
+            throw ex;
+        }
+        writes.increment();
+        cache(session);
+    }
+
+    private synchronized void cache(Session session) {
+        Session old = byClientId.put(session.getClientId(), session);
+        if (old != null && old.getPhone() != null && !old.getPhone().equals(session.getPhone())) {
+            clientIdByPhone.remove(old.getPhone(), old.getClientId());
+        }
+        if (session.getPhone() != null) {
+            clientIdByPhone.put(session.getPhone(), session.getClientId());
+        }
+    }
+}
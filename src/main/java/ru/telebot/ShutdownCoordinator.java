@@ -0,0 +1,78 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shutdown steps share one deadline. Sessions are closed in parallel, so shutdown takes as long as the slowest one
+ * and sessions not closed by the deadline are reported and left behind.
+ */
+public class ShutdownCoordinator {
+    private static final Logger logger = LoggerFactory.getLogger(ShutdownCoordinator.class);
+
+    public interface Closer<T> {
+        /**
+         * @return false if resource is not closed in time
+         */
+        boolean close(T resource, long timeoutNanos) throws Exception;
+    }
+
+    private final long deadline;
+
+    public ShutdownCoordinator(long timeout, TimeUnit unit) {
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
+    }
+
+    public long remainingNanos() {
+        return Math.max(deadline - System.nanoTime(), 0);
+    }
+
+    /**
+     * @return names of resources which are not closed before the deadline or failed to close
+     */
+    public <T> List<String> closeAll(Map<String, T> resources, Closer<T> closer) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(resources.size(), 1), r -> {
+            Thread thread = new Thread(r, "shutdown");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, CompletableFuture<Boolean>> closing = new LinkedHashMap<>();
+        resources.forEach((name, resource) -> closing.put(name, CompletableFuture.supplyAsync(() -> {
+            try {
+                return closer.close(resource, remainingNanos());
+            } catch (Exception ex) {
+                logger.error(name + " : " + ex.getMessage(), ex);
+                return false;
+            }
+        }, executor)));
+        executor.shutdown();
+
+        List<String> notClosed = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Boolean>> entry : closing.entrySet()) {
+            boolean done;
+            try {
+                done = entry.getValue().get(remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException ex) {
+                done = false;
+            }
+            if (!done) {
+                notClosed.add(entry.getKey());
+            }
+        }
+        if (!notClosed.isEmpty()) {
+            logger.warn("not closed in time: " + notClosed);
+        }
+        return notClosed;
+    }
+}
@@ -0,0 +1,121 @@
+package ru.telebot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens sessions of authorized accounts concurrently, at most parallelism of them are loading at the same time.
+ * Account stops loading when it is ready, failed or not ready before the timeout, so one slow account
+ * does not hold the others back.
+ */
+public class StartupCoordinator {
+    private static final Logger logger = LoggerFactory.getLogger(StartupCoordinator.class);
+
+    public interface Opener {
+        void open(String account) throws Exception;
+    }
+
+    private final long startedAt = System.nanoTime();
+    private final Semaphore permits;
+    private final long accountTimeoutNanos;
+    private final ScheduledExecutorService scheduler;
+    // accounts loading now and the time they were opened
+    private final ConcurrentHashMap<String, Long> loading = new ConcurrentHashMap<>();
+    private final AtomicLong firstForwardMillis = new AtomicLong(-1);
+    private final Metrics.Timer readyTimer = Metrics.timer("startup.account.ready");
+
+    public StartupCoordinator(int parallelism, long accountTimeout, TimeUnit unit, ScheduledExecutorService scheduler) {
+        this.permits = new Semaphore(Math.max(parallelism, 1));
+        this.accountTimeoutNanos = unit.toNanos(accountTimeout);
+        this.scheduler = scheduler;
+        Metrics.gauge("startup.loading", loading::size);
+        Metrics.gauge("startup.first_forward_ms", firstForwardMillis::get);
+    }
+
+    /**
+     * Opens accounts in the given order on the startup thread and returns at once.
+     */
+    public Thread start(List<String> accounts, Opener opener) {
+        List<String> order = new ArrayList<>(accounts);
+        Thread thread = new Thread(() -> {
+            for (String account : order) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                loading.put(account, System.nanoTime());
+                scheduler.schedule(() -> {
+                    if (done(account)) {
+                        logger.warn(account + " is not ready in " + TimeUnit.NANOSECONDS.toSeconds(accountTimeoutNanos) + " s, opening next account");
+                    }
+                }, accountTimeoutNanos, TimeUnit.NANOSECONDS);
+                try {
+                    opener.open(account);
+                } catch (Exception ex) {
+                    logger.error(account + " : " + ex.getMessage(), ex);
+                    done(account);
+                }
+            }
+            logger.info("startup opened " + order.size() + " sessions in " + millisSince(startedAt) + " ms");
+        }, "startup");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public void ready(String account) {
+        Long opened = loading.get(account);
+        if (opened != null && done(account)) {
+            long millis = millisSince(opened);
+            readyTimer.recordSince(opened);
+            Metrics.gauge("startup." + account + ".ready_ms", () -> millis);
+            logger.info(account + " ready in " + millis + " ms");
+        }
+    }
+
+    /**
+     * Account is closed or waits for user input, it does not take a loading slot anymore.
+     */
+    public void failed(String account) {
+        done(account);
+    }
+
+    /**
+     * Called on every forwarded message, only the first one after the start is recorded.
+     */
+    public void forwarded() {
+        if (firstForwardMillis.get() < 0 && firstForwardMillis.compareAndSet(-1, millisSince(startedAt))) {
+            logger.info("first message forwarded in " + firstForwardMillis.get() + " ms after start");
+        }
+    }
+
+    public long getFirstForwardMillis() {
+        return firstForwardMillis.get();
+    }
+
+    public int getLoading() {
+        return loading.size();
+    }
+
+    private boolean done(String account) {
+        if (loading.remove(account) != null) {
+            permits.release();
+            return true;
+        }
+        return false;
+    }
+
+    private static long millisSince(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanos);
+    }
+}
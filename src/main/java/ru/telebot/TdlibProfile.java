@@ -0,0 +1,61 @@
+package ru.telebot;
+
+import org.drinkless.tdlib.TdApi;
+
+/**
+ * What TDLib keeps on disk for an account.
+ */
+public enum TdlibProfile {
+    /**
+     * messages and secret chats are stored, account can be used as a regular client
+     */
+    FULL,
+    /**
+     * account only relays messages by remote file ids: no message database and no secret chats,
+     * files are not stored with their names and storage is trimmed by the bot
+     */
+    RELAY;
+
+    public static TdlibProfile parse(String value) {
+        return value == null ? FULL : valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * Profile of the account, tdlib.profile.&lt;phone&gt; overrides tdlib.profile, FULL if neither is set.
+     */
+    public static TdlibProfile of(String phone) throws BotException {
+        return parse(Config.getValueOrDefault("tdlib.profile." + phone, Config.getValueOrDefault("tdlib.profile", null)));
+    }
+
+    public TdApi.TdlibParameters parameters(String databaseDirectory) {
+        TdApi.TdlibParameters parameters = new TdApi.TdlibParameters();
+        parameters.databaseDirectory = databaseDirectory;
+        parameters.systemLanguageCode = "en";
+        parameters.deviceModel = "Desktop";
+        parameters.systemVersion = "Unknown";
+        parameters.applicationVersion = "1.0";
+        parameters.enableStorageOptimizer = true;
+        parameters.useTestDc = false;
+        if (this == FULL) {
+            parameters.useMessageDatabase = true;
+            parameters.useSecretChats = true;
+        } else {
+            // chat info is kept, chat titles of the headers are not requested again after restart
+            parameters.useChatInfoDatabase = true;
+            parameters.ignoreFileNames = true;
+        }
+        return parameters;
+    }
+
+    /**
+     * @param maxSize files kept by TDLib in bytes, -1 for TDLib default
+     * @param ttl     seconds since the last access after which file is removed, -1 for TDLib default
+     * @return request trimming storage, null if profile keeps everything
+     */
+    public TdApi.OptimizeStorage optimizeStorage(long maxSize, int ttl) {
+        if (this == FULL) {
+            return null;
+        }
+        return new TdApi.OptimizeStorage(maxSize, ttl, -1, -1, null, null, null, 0);
+    }
+}
@@ -0,0 +1,123 @@
+package ru.telebot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Collects values with the same key for a short window and passes them to the sink together.
+ * Group is passed when the window since its first value is over or when it has max size values.
+ * Sink is called without the lock, in the thread which added the last value or in the scheduler thread.
+ * Flush when the window is over goes through the flusher, so caller can serialize it with its own flushes.
+ */
+public class WindowedAggregator<K, V> {
+
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final int maxSize;
+    private final BiConsumer<K, Runnable> flusher;
+    private final BiConsumer<K, List<V>> sink;
+    private final Map<K, Group<V>> groups = new HashMap<>();
+
+    public WindowedAggregator(ScheduledExecutorService scheduler, long windowMillis, int maxSize, BiConsumer<K, List<V>> sink) {
+        this(scheduler, windowMillis, maxSize, (key, flush) -> flush.run(), sink);
+    }
+
+    /**
+     * @param flusher runs flush of the group when its window is over, in the scheduler thread
+     */
+    public WindowedAggregator(ScheduledExecutorService scheduler, long windowMillis, int maxSize,
+                              BiConsumer<K, Runnable> flusher, BiConsumer<K, List<V>> sink) {
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+        this.flusher = flusher;
+        this.sink = sink;
+    }
+
+    public void add(K key, V value) {
+        List<V> full = null;
+        synchronized (this) {
+            Group<V> group = groups.get(key);
+            if (group == null) {
+                Group<V> created = new Group<>();
+                group = created;
+                groups.put(key, group);
+                group.timer = scheduler.schedule(() -> flusher.accept(key, () -> expire(key, created)), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            group.values.add(value);
+            if (group.values.size() >= maxSize) {
+                groups.remove(key);
+                group.timer.cancel(false);
+                full = group.values;
+            }
+        }
+        if (full != null) {
+            sink.accept(key, full);
+        }
+    }
+
+    public void flush(K key) {
+        Group<V> group;
+        synchronized (this) {
+            group = groups.remove(key);
+        }
+        if (group != null) {
+            group.timer.cancel(false);
+            sink.accept(key, group.values);
+        }
+    }
+
+    /**
+     * Group can be flushed already by the time its timer runs the flush, new group with the key is not flushed then.
+     */
+    private void expire(K key, Group<V> group) {
+        synchronized (this) {
+            if (!groups.remove(key, group)) {
+                return;
+            }
+        }
+        sink.accept(key, group.values);
+    }
+
+    /**
+     * Passes groups with matching keys to the sink right away, used to keep order with values which are not grouped.
+     */
+    public void flushIf(Predicate<K> predicate) {
+        Map<K, Group<V>> flushed = new HashMap<>();
+        synchronized (this) {
+            Iterator<Map.Entry<K, Group<V>>> iterator = groups.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, Group<V>> entry = iterator.next();
+                if (predicate.test(entry.getKey())) {
+                    flushed.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+        flushed.forEach((key, group) -> {
+            group.timer.cancel(false);
+            sink.accept(key, group.values);
+        });
+    }
+
+    public void flushAll() {
+        flushIf(key -> true);
+    }
+
+    public synchronized int getPending() {
+        return groups.size();
+    }
+
+    private static class Group<V> {
+        private final List<V> values = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+    }
+}
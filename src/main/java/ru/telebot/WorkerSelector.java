@@ -0,0 +1,153 @@
+package ru.telebot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks sends in flight, error rate and latency of worker accounts and orders them for sending:
+ * accounts which are not ready and accounts with high error rate are left out and the less loaded of two random
+ * accounts goes first.
+ * Statistics are updated with atomics, selection does not take locks.
+ */
+public class WorkerSelector {
+
+    // weight of the last result in moving averages
+    private static final double ALPHA = 0.2;
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    private static final long BASE_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+    // unhealthy account gets a job again after this time to find out if it recovered
+    private static final long PROBE_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+    // authorized accounts with open client
+    private final Set<String> ready = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param accounts accounts able to send, not empty
+     * @return ready healthy accounts (all ready ones, if none is healthy), preferred one first,
+     * empty if none of the accounts is ready
+     */
+    public List<String> candidates(List<String> accounts) {
+        List<String> usable = new ArrayList<>(accounts.size());
+        List<String> healthy = new ArrayList<>(accounts.size());
+        long now = System.nanoTime();
+        for (String account : accounts) {
+            if (ready.contains(account)) {
+                usable.add(account);
+                if (stats(account).isHealthy(now)) {
+                    healthy.add(account);
+                }
+            }
+        }
+        if (healthy.isEmpty()) {
+            healthy.addAll(usable);
+        }
+        if (healthy.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(healthy.size());
+            int second = random.nextInt(healthy.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            int best = stats(healthy.get(first)).cost() <= stats(healthy.get(second)).cost() ? first : second;
+            healthy.add(0, healthy.remove(best));
+        }
+        return healthy;
+    }
+
+    public void ready(String account) {
+        ready.add(account);
+    }
+
+    public void notReady(String account) {
+        ready.remove(account);
+    }
+
+    public boolean isReady(String account) {
+        return ready.contains(account);
+    }
+
+    public void selected(String account) {
+        stats(account).selected.increment();
+    }
+
+    /**
+     * @return start time to pass to {@link #completed}
+     */
+    public long started(String account) {
+        stats(account).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void completed(String account, long start, boolean error) {
+        Stats s = stats(account);
+        s.inFlight.decrementAndGet();
+        s.latency.update(System.nanoTime() - start);
+        s.errorRate.update(error ? 1 : 0);
+        s.lastCompletedAt = System.nanoTime();
+    }
+
+    int getInFlight(String account) {
+        return stats(account).inFlight.get();
+    }
+
+    private Stats stats(String account) {
+        Stats s = stats.get(account);
+        if (s == null) {
+            s = stats.computeIfAbsent(account, Stats::new);
+        }
+        return s;
+    }
+
+    private static class Stats {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final MovingAverage latency = new MovingAverage();
+        private final MovingAverage errorRate = new MovingAverage();
+        private final LongAdder selected;
+        private volatile long lastCompletedAt = System.nanoTime();
+
+        Stats(String account) {
+            selected = Metrics.counter("worker.selected." + account);
+            Metrics.gauge("worker." + account + ".inflight", inFlight::get);
+            Metrics.gauge("worker." + account + ".latency_us", () -> TimeUnit.NANOSECONDS.toMicros((long) latency.get()));
+            Metrics.gauge("worker." + account + ".error_rate_pct", () -> Math.round(errorRate.get() * 100));
+        }
+
+        boolean isHealthy(long now) {
+            return errorRate.get() < UNHEALTHY_ERROR_RATE || now - lastCompletedAt > PROBE_INTERVAL;
+        }
+
+        double cost() {
+            return (inFlight.get() + 1) * (latency.get() + BASE_LATENCY) * (1 + 4 * errorRate.get());
+        }
+    }
+
+    /**
+     * Exponentially weighted moving average, double is kept as long bits to be updated with CAS.
+     */
+    private static class MovingAverage {
+        private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(0));
+
+        void update(double value) {
+            long current;
+            long next;
+            do {
+                current = bits.get();
+                double average = Double.longBitsToDouble(current);
+                next = Double.doubleToLongBits(average + ALPHA * (value - average));
+            } while (!bits.compareAndSet(current, next));
+        }
+
+        double get() {
+            return Double.longBitsToDouble(bits.get());
+        }
+    }
+}
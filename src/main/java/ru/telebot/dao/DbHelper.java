@@ -2,6 +2,7 @@ package ru.telebot.dao;
 
 import com.zaxxer.hikari.HikariDataSource;
 import ru.telebot.domain.Chat;
+import ru.telebot.domain.ForwardedMessage;
 import ru.telebot.domain.Session;
 import ru.telebot.domain.State;
 import ru.telebot.domain.User;
@@ -11,11 +12,22 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 public class DbHelper {
 
+    public static final String FORWARDED_MESSAGE_PARTITION_PREFIX = "forwarded_message_";
+
     public static void testConnection(DataSource ds) throws SQLException {
         try (Connection connection = ds.getConnection()) {
             try (PreparedStatement ps = connection.prepareStatement("select 1")) {
@@ -25,6 +37,54 @@ public class DbHelper {
         }
     }
 
+    /**
+     * Upgrades existing database to the current schema.sql
+     */
+    public static void migrate(DataSource ds) throws SQLException {
+        try (Connection connection = ds.getConnection()) {
+            if (hasTable(connection, "forwarded_message")) {
+                // single forwarded_message table is replaced by daily partitions, old records go to the today's one
+                String partition = getForwardedMessagePartition(LocalDate.now(ZoneOffset.UTC));
+                // message ids are unique only inside of source chat, records without source get 0
+                String source = hasColumn(connection, "forwarded_message", "source_chat_id") ? "source_chat_id" : "0";
+                try (Statement st = connection.createStatement()) {
+                    st.executeUpdate(createPartitionSql(partition));
+                    st.executeUpdate("insert or ignore into " + partition + " (source_chat_id, msg_id, chat_id, forwarded_at) " +
+                            "select " + source + ", msg_id, chat_id, " + Instant.now().getEpochSecond() + " from forwarded_message");
+                    st.executeUpdate("DROP TABLE forwarded_message");
+                }
+            }
+            if (hasTable(connection, "user_chat") && !hasColumn(connection, "user_chat", "batch")) {
+                try (Statement st = connection.createStatement()) {
+                    st.executeUpdate("ALTER TABLE user_chat ADD COLUMN batch INTEGER NOT NULL DEFAULT 0");
+                }
+            }
+            connection.commit();
+        }
+    }
+
+    private static boolean hasTable(Connection connection, String table) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("select 1 from sqlite_master where type = 'table' and name = ?")) {
+            ps.setString(1, table);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("PRAGMA table_info(" + table + ")")) {
+            try (ResultSet resultSet = ps.executeQuery()) {
+                while (resultSet.next()) {
+                    if (column.equalsIgnoreCase(resultSet.getString("name"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     public static List<Session> getSessions(DataSource ds) throws SQLException {
 
         final List<Session> sessions = new ArrayList<>();
@@ -51,13 +111,10 @@ public class DbHelper {
         return session;
     }
 
-    public static List<Chat> getChatsToForward(DataSource ds, String phone, long chatId) throws SQLException {
+    public static List<Chat> getAllRoutes(DataSource ds) throws SQLException {
         final List<Chat> chats = new ArrayList<>();
         try (Connection connection = ds.getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("select uc.* from user_chat uc inner join user_permission up on uc.chat_id_to = up.chat_id where uc.chat_id_from = ? and uc.owner = ? and up.phone = ?")) {
-                ps.setLong(1, chatId);
-                ps.setString(2, phone);
-                ps.setString(3, phone);
+            try (PreparedStatement ps = connection.prepareStatement("select uc.* from user_chat uc inner join user_permission up on uc.chat_id_to = up.chat_id and uc.owner = up.phone")) {
                 ResultSet resultSet = ps.executeQuery();
                 while (resultSet.next()){
                     Chat chat = new Chat();
@@ -65,6 +122,7 @@ public class DbHelper {
                     chat.setChatIdFrom(resultSet.getLong("chat_id_from"));
                     chat.setChatIdTo(resultSet.getLong("chat_id_to"));
                     chat.setName(resultSet.getString("chat_name"));
+                    chat.setBatch(resultSet.getBoolean("batch"));
                     chats.add(chat);
                 }
                 resultSet.close();
@@ -86,6 +144,7 @@ public class DbHelper {
                     chat.setChatIdFrom(resultSet.getLong("chat_id_from"));
                     chat.setChatIdTo(resultSet.getLong("chat_id_to"));
                     chat.setName(resultSet.getString("chat_name"));
+                    chat.setBatch(resultSet.getBoolean("batch"));
                     chats.add(chat);
                 }
                 resultSet.close();
@@ -95,104 +154,155 @@ public class DbHelper {
         return chats;
     }
 
-    public static boolean messageWasForwarderToChannel(DataSource ds, long messageId, long chatId) throws SQLException {
+    public static String getForwardedMessagePartition(LocalDate day) {
+        return FORWARDED_MESSAGE_PARTITION_PREFIX + day.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    public static LocalDate getForwardedMessagePartitionDay(String partition) {
+        return LocalDate.parse(partition.substring(FORWARDED_MESSAGE_PARTITION_PREFIX.length()), DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    private static String createPartitionSql(String partition) {
+        return "CREATE TABLE IF NOT EXISTS " + partition + " (source_chat_id BIGINT NOT NULL, msg_id BIGINT NOT NULL, chat_id BIGINT NOT NULL, " +
+                "forwarded_at BIGINT NOT NULL, PRIMARY KEY (source_chat_id, msg_id, chat_id))";
+    }
 
+    public static List<String> getForwardedMessagePartitions(DataSource ds) throws SQLException {
+        final List<String> partitions = new ArrayList<>();
         try (Connection connection = ds.getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("select * from forwarded_message where msg_id = ? and chat_id = ?")) {
-                ps.setLong(1, messageId);
-                ps.setLong(2, chatId);
+            try (PreparedStatement ps = connection.prepareStatement("select name from sqlite_master where type = 'table' and name like ? order by name")) {
+                ps.setString(1, FORWARDED_MESSAGE_PARTITION_PREFIX + "%");
                 ResultSet resultSet = ps.executeQuery();
-                boolean result = resultSet.next();
+                while (resultSet.next()) {
+                    String name = resultSet.getString(1);
+                    if (name.matches(FORWARDED_MESSAGE_PARTITION_PREFIX + "\\d{8}")) {
+                        partitions.add(name);
+                    }
+                }
                 resultSet.close();
                 connection.commit();
-                return result;
             }
         }
+        return partitions;
     }
 
-    public static void addForwardedMessage(DataSource ds, long messageId, long chatId) throws SQLException {
+    public static void createForwardedMessagePartition(DataSource ds, String partition) throws SQLException {
         try (Connection connection = ds.getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("insert into forwarded_message (msg_id, chat_id) values (?, ?)")) {
-                ps.setLong(1, messageId);
-                ps.setLong(2, chatId);
-                ps.executeUpdate();
+            try (Statement st = connection.createStatement()) {
+                st.executeUpdate(createPartitionSql(partition));
                 connection.commit();
             }
         }
     }
 
-
-
-    public static Session getSessionByClientId(DataSource ds, long clientId) throws SQLException  {
+    /**
+     * Drops the whole partition instead of row by row delete.
+     *
+     * @return count of dropped records
+     */
+    public static int dropForwardedMessagePartition(DataSource ds, String partition) throws SQLException {
         try (Connection connection = ds.getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("select * from user_session where client_id = ?")) {
-                ps.setLong(1, clientId);
-                ResultSet resultSet = ps.executeQuery();
-                Session session = new Session();
-                session.setAuthState(State.LOGIN);
-                session.setClientId(clientId);
-                if(resultSet.next()){
-                    session = mapSession(resultSet);
+            try (Statement st = connection.createStatement()) {
+                int rows;
+                try (ResultSet resultSet = st.executeQuery("select count(*) from " + partition)) {
+                    rows = resultSet.next() ? resultSet.getInt(1) : 0;
                 }
-                resultSet.close();
+                st.executeUpdate("DROP TABLE " + partition);
                 connection.commit();
-                return session;
+                return rows;
+            }
+        }
+    }
 
+    /**
+     * Partitions are probed one by one in the given order, newest first, until the message is found.
+     * One compound select over all of them would fail with more than 500 partitions.
+     */
+    public static boolean messageWasForwarderToChannel(DataSource ds, List<String> partitions, long sourceChatId, long messageId, long chatId) throws SQLException {
+        if (partitions.isEmpty()) {
+            return false;
+        }
+        try (Connection connection = ds.getConnection()) {
+            boolean result = false;
+            for (String partition : partitions) {
+                try (PreparedStatement ps = connection.prepareStatement("select 1 from " + partition + " where source_chat_id = ? and msg_id = ? and chat_id = ?")) {
+                    ps.setLong(1, sourceChatId);
+                    ps.setLong(2, messageId);
+                    ps.setLong(3, chatId);
+                    try (ResultSet resultSet = ps.executeQuery()) {
+                        result = resultSet.next();
+                    }
+                }
+                if (result) {
+                    break;
+                }
             }
+            connection.commit();
+            return result;
         }
     }
-    public static void save(DataSource ds, Session session) throws SQLException  {
+
+    /**
+     * Partitions for all records have to exist already.
+     */
+    public static void addForwardedMessages(DataSource ds, Collection<ForwardedMessage> messages) throws SQLException {
+        Map<String, List<ForwardedMessage>> byPartition = new TreeMap<>();
+        for (ForwardedMessage message : messages) {
+            byPartition.computeIfAbsent(getForwardedMessagePartition(message.getForwardedAt()), p -> new ArrayList<>()).add(message);
+        }
         try (Connection connection = ds.getConnection()) {
+            for (Map.Entry<String, List<ForwardedMessage>> entry : byPartition.entrySet()) {
+                try (PreparedStatement ps = connection.prepareStatement("insert or ignore into " + entry.getKey() + " (source_chat_id, msg_id, chat_id, forwarded_at) values (?, ?, ?, ?)")) {
+                    for (ForwardedMessage message : entry.getValue()) {
+                        ps.setLong(1, message.getSourceChatId());
+                        ps.setLong(2, message.getMessageId());
+                        ps.setLong(3, message.getChatId());
+                        ps.setLong(4, message.getForwardedAt());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            }
+            connection.commit();
+        }
+    }
 
-            try (PreparedStatement ps = connection.prepareStatement("select * from user_session where client_id = ?")) {
-                ps.setLong(1, session.getClientId());
-                ResultSet resultSet = ps.executeQuery();
+    public static String getForwardedMessagePartition(long forwardedAt) {
+        return getForwardedMessagePartition(Instant.ofEpochSecond(forwardedAt).atZone(ZoneOffset.UTC).toLocalDate());
+    }
 
-                if(resultSet.next()){
-                    resultSet.close();
-                    try(PreparedStatement ps2 = connection.prepareStatement("update user_session set " +
-                            "phone = ?, " +
-                            "auth_state = ?, " +
-                            "current_action = ?, " +
-                            "first_param = ? " +
-                            "where  client_id = ?")){
-                        ps2.setString(1, session.getPhone());
-                        ps2.setString(2, session.getAuthState().toString());
-                        ps2.setString(3, session.getCurrentAction());
-                        ps2.setString(4, session.getFirstParam());
-                        ps2.setLong(5, session.getClientId());
-                        ps2.executeUpdate();
-                    }
-                }else{
-                    try(PreparedStatement ps2 = connection.prepareStatement("insert into user_session (phone, auth_state, current_action, first_param, client_id) " +
-                            "values (? ,? ,? ,? ,? )")){
-                        ps2.setString(1, session.getPhone());
-                        ps2.setString(2, session.getAuthState().toString());
-                        ps2.setString(3, session.getCurrentAction());
-                        ps2.setString(4, session.getFirstParam());
-                        ps2.setLong(5, session.getClientId());
-                        ps2.executeUpdate();
+    public static void forEachForwardedMessage(DataSource ds, List<String> partitions, Consumer<ForwardedMessage> consumer) throws SQLException {
+        try (Connection connection = ds.getConnection()) {
+            for (String partition : partitions) {
+                try (PreparedStatement ps = connection.prepareStatement("select source_chat_id, msg_id, chat_id, forwarded_at from " + partition + " order by rowid")) {
+                    ResultSet resultSet = ps.executeQuery();
+                    while (resultSet.next()) {
+                        consumer.accept(new ForwardedMessage(resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3), resultSet.getLong(4)));
                     }
+                    resultSet.close();
                 }
-
-                connection.commit();
             }
+            connection.commit();
         }
     }
 
-    public static Session getSessionByPhone(DataSource ds, String phone) throws SQLException {
+    public static void save(DataSource ds, Session session) throws SQLException  {
         try (Connection connection = ds.getConnection()) {
-            try (PreparedStatement ps = connection.prepareStatement("select * from user_session where phone = ?")) {
-                ps.setString(1, phone);
-                ResultSet resultSet = ps.executeQuery();
-                Session session = null;
-                if(resultSet.next()){
-                    session = mapSession(resultSet);
-                }
-                resultSet.close();
-                connection.commit();
-                return session;
+            try (PreparedStatement ps = connection.prepareStatement("insert into user_session (phone, auth_state, current_action, first_param, client_id) " +
+                    "values (? ,? ,? ,? ,? ) " +
+                    "on conflict(client_id) do update set " +
+                    "phone = excluded.phone, " +
+                    "auth_state = excluded.auth_state, " +
+                    "current_action = excluded.current_action, " +
+                    "first_param = excluded.first_param")) {
+                ps.setString(1, session.getPhone());
+                ps.setString(2, session.getAuthState().toString());
+                ps.setString(3, session.getCurrentAction());
+                ps.setString(4, session.getFirstParam());
+                ps.setLong(5, session.getClientId());
+                ps.executeUpdate();
             }
+            connection.commit();
         }
     }
 
@@ -292,6 +402,32 @@ public class DbHelper {
 
     }
 
+    /**
+     * @return new batch mode of the link, null if there is no such link
+     */
+    public static Boolean switchLinkBatchByName(DataSource ds, String phone, String name) throws SQLException {
+        try (Connection connection = ds.getConnection()) {
+            try (PreparedStatement ps = connection.prepareStatement("update user_chat set batch = 1 - batch where owner=? and chat_name=?")) {
+                ps.setString(1, phone);
+                ps.setString(2, name);
+                if (ps.executeUpdate() == 0) {
+                    connection.commit();
+                    return null;
+                }
+            }
+            try (PreparedStatement ps = connection.prepareStatement("select max(batch) from user_chat where owner=? and chat_name=?")) {
+                ps.setString(1, phone);
+                ps.setString(2, name);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    resultSet.next();
+                    boolean batch = resultSet.getBoolean(1);
+                    connection.commit();
+                    return batch;
+                }
+            }
+        }
+    }
+
     public static List<Chat> getAllLinks(DataSource ds) throws SQLException {
         final List<Chat> chats = new ArrayList<>();
         try (Connection connection = ds.getConnection()) {
@@ -304,6 +440,7 @@ public class DbHelper {
                     chat.setChatIdTo(resultSet.getLong("chat_id_to"));
                     chat.setOwner(resultSet.getString("owner"));
                     chat.setName(resultSet.getString("chat_name"));
+                    chat.setBatch(resultSet.getBoolean("batch"));
                     chats.add(chat);
                 }
                 resultSet.close();
@@ -5,6 +5,8 @@ public class Chat {
     private long chatIdTo;
     private String owner;
     private String name;
+    // messages of the link are collected for a short time and forwarded with one request
+    private boolean batch;
 
     public long getChatIdFrom() {
         return chatIdFrom;
@@ -38,6 +40,14 @@ public class Chat {
         this.name = name;
     }
 
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -49,6 +59,9 @@ public class Chat {
         if (owner != null) {
             sb.append(", owner=").append(owner);
         }
+        if (batch) {
+            sb.append(", batch");
+        }
         sb.append(" }");
         return sb.toString();
     }
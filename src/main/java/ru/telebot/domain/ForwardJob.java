@@ -0,0 +1,174 @@
+package ru.telebot.domain;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.List;
+
+/**
+ * Everything what is needed to send a copy of source message to one destination.
+ */
+public class ForwardJob {
+
+    public enum ContentKind {
+        TEXT, PHOTO, ANIMATION, VIDEO, DOCUMENT,
+        // parts of media album are in items, they are sent with one request
+        ALBUM,
+        // messages of batch link are in items, they are forwarded by the link owner with one request
+        BATCH
+    }
+
+    private long chatIdTo;
+    private long sourceChatId;
+    private long messageId;
+    private String title;
+    private int date;
+    private ContentKind kind;
+    private String text;
+    private TdApi.TextEntity[] entities;
+    private String remoteFileId;
+    private int width;
+    private int height;
+    private int duration;
+    private boolean supportsStreaming;
+    private long mediaAlbumId;
+    private List<ForwardJob> items;
+    // account which has to send the job, any worker if null
+    private String account;
+
+    public long getChatIdTo() {
+        return chatIdTo;
+    }
+
+    public void setChatIdTo(long chatIdTo) {
+        this.chatIdTo = chatIdTo;
+    }
+
+    public long getSourceChatId() {
+        return sourceChatId;
+    }
+
+    public void setSourceChatId(long sourceChatId) {
+        this.sourceChatId = sourceChatId;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(long messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public int getDate() {
+        return date;
+    }
+
+    public void setDate(int date) {
+        this.date = date;
+    }
+
+    public ContentKind getKind() {
+        return kind;
+    }
+
+    public void setKind(ContentKind kind) {
+        this.kind = kind;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public TdApi.TextEntity[] getEntities() {
+        return entities;
+    }
+
+    public void setEntities(TdApi.TextEntity[] entities) {
+        this.entities = entities;
+    }
+
+    public String getRemoteFileId() {
+        return remoteFileId;
+    }
+
+    public void setRemoteFileId(String remoteFileId) {
+        this.remoteFileId = remoteFileId;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    public boolean isSupportsStreaming() {
+        return supportsStreaming;
+    }
+
+    public void setSupportsStreaming(boolean supportsStreaming) {
+        this.supportsStreaming = supportsStreaming;
+    }
+
+    public long getMediaAlbumId() {
+        return mediaAlbumId;
+    }
+
+    public void setMediaAlbumId(long mediaAlbumId) {
+        this.mediaAlbumId = mediaAlbumId;
+    }
+
+    /**
+     * @return parts of album or batch, only content fields, message id and album id are set in them
+     */
+    public List<ForwardJob> getItems() {
+        return items;
+    }
+
+    public void setItems(List<ForwardJob> items) {
+        this.items = items;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
+    @Override
+    public String toString() {
+        String size = items != null ? "[" + items.size() + "]" : "";
+        return "ForwardJob { " + kind + size + " " + sourceChatId + "/" + messageId + " -> " + chatIdTo + " }";
+    }
+}
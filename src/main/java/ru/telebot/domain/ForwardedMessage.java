@@ -0,0 +1,67 @@
+package ru.telebot.domain;
+
+/**
+ * Key of forwarded_message record. Message ids are unique only inside of source chat,
+ * so source chat is a part of the key.
+ */
+public final class ForwardedMessage {
+    private final long sourceChatId;
+    private final long messageId;
+    private final long chatId;
+    private final long forwardedAt;
+
+    public ForwardedMessage(long sourceChatId, long messageId, long chatId) {
+        this(sourceChatId, messageId, chatId, 0);
+    }
+
+    /**
+     * @param forwardedAt unix time in seconds, it is not a part of the key
+     */
+    public ForwardedMessage(long sourceChatId, long messageId, long chatId, long forwardedAt) {
+        this.sourceChatId = sourceChatId;
+        this.messageId = messageId;
+        this.chatId = chatId;
+        this.forwardedAt = forwardedAt;
+    }
+
+    public long getSourceChatId() {
+        return sourceChatId;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public long getChatId() {
+        return chatId;
+    }
+
+    public long getForwardedAt() {
+        return forwardedAt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ForwardedMessage)) {
+            return false;
+        }
+        ForwardedMessage that = (ForwardedMessage) o;
+        return sourceChatId == that.sourceChatId && messageId == that.messageId && chatId == that.chatId;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(sourceChatId);
+        result = 31 * result + Long.hashCode(messageId);
+        result = 31 * result + Long.hashCode(chatId);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ForwardedMessage { " + sourceChatId + "/" + messageId + " -> " + chatId + " }";
+    }
+}
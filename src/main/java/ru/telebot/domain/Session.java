@@ -15,6 +15,14 @@ public class Session {
         this.authState = state;
     }
 
+    public Session(Session other) {
+        this.phone = other.phone;
+        this.authState = other.authState;
+        this.currentAction = other.currentAction;
+        this.clientId = other.clientId;
+        this.firstParam = other.firstParam;
+    }
+
     public String getPhone() {
         return phone;
     }
@@ -0,0 +1,84 @@
+package ru.telebot.queue;
+
+import ru.telebot.Metrics;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs deliveries of one destination one after another in the order they were submitted, deliveries of different
+ * destinations run concurrently. Delivery with its retries is one link of the chain, so at most one send to
+ * a destination is in flight and a retried job is not overtaken by later jobs.
+ */
+class DestinationChains {
+
+    // last delivery of each destination, removed when it completes with nothing after it
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> tails = new ConcurrentHashMap<>();
+    // starts delivery waiting for the previous one, completion can come in TDLib thread which must not do it
+    private final ExecutorService executor;
+    // deliveries submitted before reset do not start, their jobs are delivered again by the next subscription
+    private final AtomicInteger generation = new AtomicInteger();
+
+    DestinationChains(int threads) {
+        executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread thread = new Thread(r, "queue-chain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.gauge("queue.chains", tails::size);
+    }
+
+    /**
+     * Must be called in delivery order of the destination, by one thread for the destination.
+     */
+    CompletableFuture<Boolean> submit(long destination, Supplier<CompletableFuture<Boolean>> delivery) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        int submitted = generation.get();
+        CompletableFuture<Boolean> previous = tails.put(destination, result);
+        if (previous == null || previous.isDone()) {
+            start(delivery, result);
+        } else {
+            previous.whenCompleteAsync((v, ex) -> {
+                if (submitted != generation.get()) {
+                    result.completeExceptionally(new CancellationException("delivery stopped"));
+                } else {
+                    start(delivery, result);
+                }
+            }, executor);
+        }
+        result.whenComplete((v, ex) -> tails.remove(destination, result));
+        return result;
+    }
+
+    private static void start(Supplier<CompletableFuture<Boolean>> delivery, CompletableFuture<Boolean> result) {
+        try {
+            delivery.get().whenComplete((delivered, ex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                } else {
+                    result.complete(delivered);
+                }
+            });
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Called when delivery stops: new deliveries do not wait for the ones in progress,
+     * which may never complete, and waiting deliveries are cancelled.
+     */
+    void reset() {
+        generation.incrementAndGet();
+        tails.clear();
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+}
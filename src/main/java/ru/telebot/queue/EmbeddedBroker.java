@@ -0,0 +1,36 @@
+package ru.telebot.queue;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.usage.MemoryUsage;
+import org.apache.activemq.usage.StoreUsage;
+import org.apache.activemq.usage.SystemUsage;
+import ru.telebot.BotException;
+
+public class EmbeddedBroker {
+
+    public static BrokerService start(String dataDirectory, boolean tcpConnector) throws BotException {
+        try {
+            BrokerService broker = new BrokerService();
+            broker.setBrokerName("localhost");
+            broker.setPersistent(true);
+            broker.setDataDirectory(dataDirectory);
+            if (tcpConnector) {
+                broker.addConnector("tcp://localhost:61616");
+            }
+            SystemUsage systemUsage = new SystemUsage();
+            MemoryUsage memoryUsage = new MemoryUsage();
+            memoryUsage.setPercentOfJvmHeap(5);
+
+            systemUsage.setMemoryUsage(memoryUsage);
+            StoreUsage storeUsage = new StoreUsage();
+            storeUsage.setLimit(500 * 1024 * 1024);
+            systemUsage.setStoreUsage(storeUsage);
+            broker.setConsumerSystemUsage(systemUsage);
+            broker.start();
+            broker.waitUntilStarted();
+            return broker;
+        } catch (Exception ex) {
+            throw new BotException("cannot start embedded broker", ex);
+        }
+    }
+}
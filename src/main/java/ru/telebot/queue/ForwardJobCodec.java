@@ -0,0 +1,215 @@
+package ru.telebot.queue;
+
+import org.drinkless.tdlib.TdApi;
+import ru.telebot.domain.ForwardJob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary format of {@link ForwardJob}. First byte is format version, decoder has to support
+ * all versions which can still be in the queue.
+ * <p>
+ * Version 2 adds album parts after the fields of version 1, version 3 adds album ids and the sending account.
+ */
+public class ForwardJobCodec {
+
+    public static final byte VERSION = 3;
+
+    private static final ForwardJob.ContentKind[] KINDS = ForwardJob.ContentKind.values();
+
+    public static byte[] encode(ForwardJob job) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(job.getChatIdTo());
+            out.writeLong(job.getSourceChatId());
+            out.writeLong(job.getMessageId());
+            writeString(out, job.getTitle());
+            out.writeInt(job.getDate());
+            writeContent(out, job);
+            List<ForwardJob> items = job.getItems();
+            if (items == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(items.size());
+                for (ForwardJob item : items) {
+                    out.writeLong(item.getMessageId());
+                    out.writeLong(item.getMediaAlbumId());
+                    writeContent(out, item);
+                }
+            }
+            out.writeLong(job.getMediaAlbumId());
+            writeString(out, job.getAccount());
+        } catch (IOException ex) {
+            // not possible for in-memory stream
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ForwardJob decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version < 1 || version > 3) {
+            throw new IOException("unsupported forward job version " + version);
+        }
+        ForwardJob job = new ForwardJob();
+        job.setChatIdTo(in.readLong());
+        job.setSourceChatId(in.readLong());
+        job.setMessageId(in.readLong());
+        job.setTitle(readString(in));
+        job.setDate(in.readInt());
+        readContent(in, job);
+        if (version >= 2) {
+            int count = in.readUnsignedShort();
+            if (count > 0) {
+                List<ForwardJob> items = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ForwardJob item = new ForwardJob();
+                    item.setChatIdTo(job.getChatIdTo());
+                    item.setSourceChatId(job.getSourceChatId());
+                    item.setMessageId(in.readLong());
+                    if (version >= 3) {
+                        item.setMediaAlbumId(in.readLong());
+                    }
+                    item.setTitle(job.getTitle());
+                    item.setDate(job.getDate());
+                    readContent(in, item);
+                    items.add(item);
+                }
+                job.setItems(items);
+            }
+        }
+        if (version >= 3) {
+            job.setMediaAlbumId(in.readLong());
+            job.setAccount(readString(in));
+        }
+        return job;
+    }
+
+    private static void writeContent(DataOutputStream out, ForwardJob job) throws IOException {
+        out.writeByte(job.getKind().ordinal());
+        writeString(out, job.getText());
+        writeEntities(out, job.getEntities());
+        writeString(out, job.getRemoteFileId());
+        out.writeInt(job.getWidth());
+        out.writeInt(job.getHeight());
+        out.writeInt(job.getDuration());
+        out.writeBoolean(job.isSupportsStreaming());
+    }
+
+    private static void readContent(DataInputStream in, ForwardJob job) throws IOException {
+        int kind = in.readUnsignedByte();
+        if (kind >= KINDS.length) {
+            throw new IOException("unknown content kind " + kind);
+        }
+        job.setKind(KINDS[kind]);
+        job.setText(readString(in));
+        job.setEntities(readEntities(in));
+        job.setRemoteFileId(readString(in));
+        job.setWidth(in.readInt());
+        job.setHeight(in.readInt());
+        job.setDuration(in.readInt());
+        job.setSupportsStreaming(in.readBoolean());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeEntities(DataOutputStream out, TdApi.TextEntity[] entities) throws IOException {
+        if (entities == null) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(entities.length);
+        for (TdApi.TextEntity entity : entities) {
+            out.writeInt(entity.offset);
+            out.writeInt(entity.length);
+            out.writeInt(entity.type.getConstructor());
+            switch (entity.type.getConstructor()) {
+                case TdApi.TextEntityTypePreCode.CONSTRUCTOR:
+                    writeString(out, ((TdApi.TextEntityTypePreCode) entity.type).language);
+                    break;
+                case TdApi.TextEntityTypeTextUrl.CONSTRUCTOR:
+                    writeString(out, ((TdApi.TextEntityTypeTextUrl) entity.type).url);
+                    break;
+                case TdApi.TextEntityTypeMentionName.CONSTRUCTOR:
+                    out.writeInt(((TdApi.TextEntityTypeMentionName) entity.type).userId);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static TdApi.TextEntity[] readEntities(DataInputStream in) throws IOException {
+        TdApi.TextEntity[] entities = new TdApi.TextEntity[in.readUnsignedShort()];
+        for (int i = 0; i < entities.length; i++) {
+            int offset = in.readInt();
+            int length = in.readInt();
+            entities[i] = new TdApi.TextEntity(offset, length, readEntityType(in));
+        }
+        return entities;
+    }
+
+    private static TdApi.TextEntityType readEntityType(DataInputStream in) throws IOException {
+        int constructor = in.readInt();
+        switch (constructor) {
+            case TdApi.TextEntityTypeMention.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeMention();
+            case TdApi.TextEntityTypeHashtag.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeHashtag();
+            case TdApi.TextEntityTypeCashtag.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeCashtag();
+            case TdApi.TextEntityTypeBotCommand.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeBotCommand();
+            case TdApi.TextEntityTypeUrl.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeUrl();
+            case TdApi.TextEntityTypeEmailAddress.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeEmailAddress();
+            case TdApi.TextEntityTypeBold.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeBold();
+            case TdApi.TextEntityTypeItalic.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeItalic();
+            case TdApi.TextEntityTypeCode.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeCode();
+            case TdApi.TextEntityTypePre.CONSTRUCTOR:
+                return new TdApi.TextEntityTypePre();
+            case TdApi.TextEntityTypePreCode.CONSTRUCTOR:
+                return new TdApi.TextEntityTypePreCode(readString(in));
+            case TdApi.TextEntityTypeTextUrl.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeTextUrl(readString(in));
+            case TdApi.TextEntityTypeMentionName.CONSTRUCTOR:
+                return new TdApi.TextEntityTypeMentionName(in.readInt());
+            case TdApi.TextEntityTypePhoneNumber.CONSTRUCTOR:
+                return new TdApi.TextEntityTypePhoneNumber();
+            default:
+                throw new IOException("unknown text entity type " + constructor);
+        }
+    }
+}
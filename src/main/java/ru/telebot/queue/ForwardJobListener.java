@@ -0,0 +1,14 @@
+package ru.telebot.queue;
+
+import ru.telebot.domain.ForwardJob;
+
+import java.util.concurrent.CompletionStage;
+
+public interface ForwardJobListener {
+
+    /**
+     * Job is acknowledged when returned stage completes normally.
+     * If it completes exceptionally (or method throws), job is delivered again.
+     */
+    CompletionStage<Void> onJob(ForwardJob job) throws Exception;
+}
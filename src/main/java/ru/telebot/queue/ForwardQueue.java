@@ -0,0 +1,25 @@
+package ru.telebot.queue;
+
+import ru.telebot.BotException;
+import ru.telebot.domain.ForwardJob;
+
+/**
+ * Durable queue of forward jobs between ingest and sending.
+ */
+public interface ForwardQueue extends AutoCloseable {
+
+    void send(ForwardJob job) throws BotException;
+
+    /**
+     * Starts delivery of queued jobs to the listener. Job is removed from the queue only after listener returns normally.
+     */
+    void subscribe(ForwardJobListener listener) throws BotException;
+
+    /**
+     * Stops delivery, jobs not completed by the listener are delivered again after next subscribe.
+     */
+    void unsubscribe();
+
+    @Override
+    void close();
+}
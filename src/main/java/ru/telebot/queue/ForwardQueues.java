@@ -0,0 +1,39 @@
+package ru.telebot.queue;
+
+import ru.telebot.BotException;
+import ru.telebot.Config;
+
+import java.nio.file.Paths;
+
+public class ForwardQueues {
+
+    public static final String QUEUE_NAME = "oneWindow";
+
+    /**
+     * @param backend broker - embedded ActiveMQ broker, available for other processes on tcp://localhost:61616,
+     *                vm - embedded ActiveMQ broker without network connectors, connected in-process,
+     *                journal - memory-mapped segment files in journal subdirectory, settings are read from config
+     * @param dataDirectory directory for persistent store of the queue
+     * @param lanes         consumers working in parallel, jobs for one destination are always processed by one lane,
+     *                      for journal it is number of partitions and used only when journal is created
+     * @param maxInFlight   jobs delivered to lane and not completed yet
+     * @param producers     sessions for concurrent sends to broker
+     */
+    public static ForwardQueue create(String backend, String dataDirectory, int lanes, int maxInFlight,
+                                      int producers) throws BotException {
+        switch (backend) {
+            case "broker":
+                return new JmsForwardQueue(EmbeddedBroker.start(dataDirectory, true), "tcp://127.0.0.1:61616", QUEUE_NAME, lanes, maxInFlight, producers);
+            case "vm":
+                return new JmsForwardQueue(EmbeddedBroker.start(dataDirectory, false), "vm://localhost?create=false", QUEUE_NAME, lanes, maxInFlight, producers);
+            case "journal":
+                return new JournalForwardQueue(Paths.get(dataDirectory, "journal"),
+                        lanes,
+                        Config.getIntValueOrDefault("queue.journal.segment.size", 64 * 1024 * 1024),
+                        JournalForwardQueue.FsyncPolicy.parse(Config.getValueOrDefault("queue.journal.fsync", "interval")),
+                        Config.getIntValueOrDefault("queue.journal.sync.interval", 1000), maxInFlight);
+            default:
+                throw new BotException("unknown queue backend " + backend);
+        }
+    }
+}
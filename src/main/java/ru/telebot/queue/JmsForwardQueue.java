@@ -0,0 +1,228 @@
+package ru.telebot.queue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.broker.BrokerService;
+import org.drinkless.tdlib.TdApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.Bot;
+import ru.telebot.BotException;
+import ru.telebot.Metrics;
+import ru.telebot.domain.ForwardJob;
+
+import javax.jms.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class JmsForwardQueue implements ForwardQueue {
+    private static final Logger logger = LoggerFactory.getLogger(JmsForwardQueue.class);
+
+    // properties of messages queued before ForwardJob format was introduced
+    private static final String LEGACY_CHAT_ID_PROPERTY = "chat_id_prop";
+    private static final String LEGACY_TITLE_PROPERTY = "title_prop";
+    private static final String LEGACY_DATE_PROPERTY = "date_prop";
+
+    private static final String GROUP_ID_PROPERTY = "JMSXGroupID";
+
+    private final BrokerService broker;
+    private final Connection connection;
+    // JMS session is not thread safe, every send takes own session from the pool
+    private final BlockingQueue<PooledProducer> producers;
+    private final String queueName;
+    private final int lanes;
+    private final List<Session> consumerSessions = new ArrayList<>();
+    private final DestinationChains chains;
+    private final Metrics.Timer poolWaitTimer = Metrics.timer("queue.producer.wait");
+
+    /**
+     * @param broker      embedded broker owned by this queue, it is stopped on close, can be null
+     * @param lanes       consumers, jobs for one destination are processed by one consumer
+     * @param maxInFlight jobs delivered to consumer and not acknowledged yet
+     * @param producers   sessions for concurrent sends
+     */
+    public JmsForwardQueue(BrokerService broker, String url, String queueName, int lanes, int maxInFlight,
+                           int producers) throws BotException {
+        this.broker = broker;
+        this.queueName = queueName;
+        this.lanes = lanes;
+        this.chains = new DestinationChains(lanes);
+        try {
+            ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(url);
+            // broker does not dispatch more than prefetch of unacknowledged messages
+            connectionFactory.getPrefetchPolicy().setQueuePrefetch(maxInFlight);
+            connection = connectionFactory.createConnection();
+            connection.start();
+            this.producers = new ArrayBlockingQueue<>(producers);
+            for (int i = 0; i < producers; i++) {
+                PooledProducer pooled = new PooledProducer();
+                pooled.open();
+                this.producers.add(pooled);
+            }
+        } catch (JMSException ex) {
+            throw new BotException(ex);
+        }
+    }
+
+    @Override
+    public void send(ForwardJob job) throws BotException {
+        PooledProducer pooled;
+        long start = System.nanoTime();
+        try {
+            pooled = producers.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BotException(ex);
+        }
+        poolWaitTimer.recordSince(start);
+        try {
+            pooled.open();
+            BytesMessage message = pooled.session.createBytesMessage();
+            message.writeBytes(ForwardJobCodec.encode(job));
+            // broker delivers messages of one group to one consumer in order
+            message.setStringProperty(GROUP_ID_PROPERTY, String.valueOf(job.getChatIdTo()));
+            pooled.producer.send(message);
+        } catch (JMSException ex) {
+            // session can be broken after failure, next send from the slot opens new one
+            pooled.close();
+            throw new BotException(ex);
+        } finally {
+            // slot goes back even without session, so the pool does not shrink when broker is unavailable
+            producers.add(pooled);
+        }
+    }
+
+    @Override
+    public synchronized void subscribe(ForwardJobListener listener) throws BotException {
+        if (!consumerSessions.isEmpty()) {
+            throw new BotException("queue already has listener");
+        }
+        try {
+            for (int lane = 0; lane < lanes; lane++) {
+                subscribeLane(listener, new LaneStats(lane));
+            }
+        } catch (JMSException ex) {
+            unsubscribe();
+            throw new BotException(ex);
+        }
+    }
+
+    @Override
+    public synchronized void unsubscribe() {
+        // messages not acknowledged by closed session go back to the queue
+        for (Session session : consumerSessions) {
+            try {
+                session.close();
+            } catch (JMSException ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }
+        consumerSessions.clear();
+        chains.reset();
+    }
+
+    private void subscribeLane(ForwardJobListener listener, LaneStats stats) throws JMSException {
+        // message is acknowledged when listener completes the job, consumer thread does not wait for it
+        Session session = connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+        consumerSessions.add(session);
+        MessageConsumer consumer = session.createConsumer(session.createQueue(queueName));
+        consumer.setMessageListener(message -> {
+            ForwardJob job;
+            try {
+                job = readJob(message);
+            } catch (Exception ex) {
+                logger.error("cannot read job from message " + message, ex);
+                acknowledge(message);
+                return;
+            }
+            if (job == null) {
+                acknowledge(message);
+                return;
+            }
+            long start = stats.started();
+            // group keeps delivery order of destination, chain keeps its send order when lane has many jobs in flight
+            chains.submit(job.getChatIdTo(), () -> Redelivery.deliver(listener, job)).whenComplete((delivered, ex) -> {
+                // delivery cancelled by unsubscribe is not acknowledged, the message goes back to the queue
+                if (ex == null) {
+                    acknowledge(message);
+                }
+                stats.completed(start);
+            });
+        });
+    }
+
+    private static void acknowledge(Message message) {
+        try {
+            message.acknowledge();
+        } catch (JMSException ex) {
+            // message will be delivered again
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+
+    private static ForwardJob readJob(Message message) throws Exception {
+        if (message instanceof ObjectMessage) {
+            ObjectMessage objMessage = (ObjectMessage) message;
+            return Bot.createForwardJob(objMessage.getLongProperty(LEGACY_CHAT_ID_PROPERTY), (TdApi.UpdateNewMessage) objMessage.getObject(),
+                    objMessage.getStringProperty(LEGACY_TITLE_PROPERTY), objMessage.getIntProperty(LEGACY_DATE_PROPERTY));
+        }
+        BytesMessage bytesMessage = (BytesMessage) message;
+        byte[] data = new byte[(int) bytesMessage.getBodyLength()];
+        bytesMessage.readBytes(data);
+        return ForwardJobCodec.decode(data);
+    }
+
+    /**
+     * Slot of the pool, used by one thread at a time. Session is opened on the first send after it was closed.
+     */
+    private class PooledProducer {
+        private Session session;
+        private MessageProducer producer;
+
+        void open() throws JMSException {
+            if (producer != null) {
+                return;
+            }
+            try {
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                producer = session.createProducer(session.createQueue(queueName));
+                producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            } catch (JMSException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        void close() {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (JMSException ex) {
+                    logger.error(ex.getMessage(), ex);
+                }
+            }
+            session = null;
+            producer = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        chains.close();
+        try {
+            connection.close();
+        } catch (JMSException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+        if (broker != null) {
+            try {
+                broker.stop();
+                broker.waitUntilStopped();
+            } catch (Exception ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package ru.telebot.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.BotException;
+import ru.telebot.Metrics;
+import ru.telebot.domain.ForwardJob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Forward queue stored in append-only memory-mapped segment files, without broker.
+ * Jobs are spread over partitions (lanes) by destination chat, so jobs for one destination are delivered in order.
+ * Every partition has own reader thread and acknowledged offset, offsets are saved to checkpoint file
+ * and segments acknowledged completely are deleted.
+ * Record in segment is [length][crc32][job bytes], offset is position of the record in the whole partition.
+ */
+public class JournalForwardQueue implements ForwardQueue {
+    private static final Logger logger = LoggerFactory.getLogger(JournalForwardQueue.class);
+
+    public enum FsyncPolicy {
+        // force segment after every append
+        ALWAYS,
+        // force segments periodically
+        INTERVAL,
+        // leave it to OS
+        NEVER;
+
+        public static FsyncPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String PARTITION_PREFIX = "p";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // written instead of record length when the next record does not fit into segment
+    private static final int END_OF_SEGMENT = -1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final int maxInFlight;
+    private final Partition[] partitions;
+    private final ScheduledExecutorService syncer;
+    private final DestinationChains chains;
+    private final LongAdder appended = Metrics.counter("journal.appended");
+    private final Metrics.Timer fsyncTimer = Metrics.timer("journal.fsync");
+    private long[] checkpointed;
+    private volatile boolean closed;
+
+    /**
+     * @param partitionCount used only for new journal, existing journal keeps its partitions
+     * @param segmentSize    size of segment file, job must fit into one segment
+     * @param syncInterval   interval of checkpoints (and fsync for INTERVAL policy), milliseconds
+     * @param maxInFlight    jobs of one partition delivered to listener and not completed yet
+     */
+    public JournalForwardQueue(Path directory, int partitionCount, int segmentSize, FsyncPolicy fsyncPolicy,
+                               long syncInterval, int maxInFlight) throws BotException {
+        this.directory = directory;
+        this.maxInFlight = maxInFlight;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        try {
+            Files.createDirectories(directory);
+            long[] acked = readCheckpoint();
+            int existing = countPartitions();
+            if (existing > 0 && existing != partitionCount) {
+                logger.warn("journal " + directory + " has " + existing + " partitions, configured " + partitionCount + " is ignored");
+                partitionCount = existing;
+            }
+            partitions = new Partition[partitionCount];
+            for (int i = 0; i < partitionCount; i++) {
+                partitions[i] = new Partition(i, acked != null && i < acked.length ? acked[i] : 0);
+            }
+        } catch (IOException ex) {
+            throw new BotException("cannot open journal " + directory, ex);
+        }
+        checkpointed = new long[partitions.length];
+        chains = new DestinationChains(partitions.length);
+        Metrics.gauge("journal.backlog_bytes", this::getBacklog);
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (Exception ex) {
+                logger.error(ex.getMessage(), ex);
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void send(ForwardJob job) throws BotException {
+        if (closed) {
+            throw new BotException("journal is closed");
+        }
+        byte[] data = ForwardJobCodec.encode(job);
+        if (HEADER_SIZE + data.length + 4 > segmentSize) {
+            throw new BotException("job of " + data.length + " bytes does not fit into journal segment");
+        }
+        try {
+            partitions[Math.floorMod(Long.hashCode(job.getChatIdTo()), partitions.length)].append(data);
+        } catch (IOException ex) {
+            throw new BotException(ex);
+        }
+        appended.increment();
+    }
+
+    @Override
+    public synchronized void subscribe(ForwardJobListener listener) throws BotException {
+        if (closed) {
+            throw new BotException("journal is closed");
+        }
+        if (partitions[0].reader != null) {
+            throw new BotException("journal already has listener");
+        }
+        for (Partition partition : partitions) {
+            partition.startReader(listener);
+        }
+    }
+
+    @Override
+    public synchronized void unsubscribe() {
+        stopReaders();
+        chains.reset();
+    }
+
+    /**
+     * Stops reader threads and gives jobs in progress a chance to be acknowledged.
+     * Jobs not acknowledged in time are delivered again by the next reader.
+     */
+    private void stopReaders() {
+        List<Reader> stopped = new ArrayList<>();
+        for (Partition partition : partitions) {
+            Reader reader = partition.reader;
+            if (reader != null) {
+                reader.stop();
+                stopped.add(reader);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        for (Reader reader : stopped) {
+            try {
+                reader.thread.join(TimeUnit.SECONDS.toMillis(5));
+                if (reader.window.tryAcquire(maxInFlight, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    reader.window.release(maxInFlight);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Partition partition : partitions) {
+            partition.reader = null;
+        }
+    }
+
+    public long getBacklog() {
+        long backlog = 0;
+        for (Partition partition : partitions) {
+            backlog += partition.writeOffset - partition.ackedOffset;
+        }
+        return backlog;
+    }
+
+    /**
+     * Forces segments to disk according to fsync policy, saves checkpoint and deletes acknowledged segments.
+     */
+    synchronized void sync() throws IOException {
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            for (Partition partition : partitions) {
+                partition.force();
+            }
+        }
+        long[] acked = new long[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            acked[i] = partitions[i].ackedOffset;
+        }
+        if (!Arrays.equals(acked, checkpointed)) {
+            writeCheckpoint(acked);
+            checkpointed = acked;
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i].deleteSegmentsBefore(acked[i]);
+            }
+        }
+    }
+
+    private int countPartitions() throws IOException {
+        int count = 0;
+        while (Files.isDirectory(directory.resolve(PARTITION_PREFIX + count))) {
+            count++;
+        }
+        return count;
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(file);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, Math.max(data.length - 8, 0));
+        if (data.length < 16 || ByteBuffer.wrap(data).getLong(data.length - 8) != crc.getValue()) {
+            logger.warn("journal checkpoint is broken, jobs will be delivered from the oldest segment");
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readInt();
+            if (version != CHECKPOINT_VERSION) {
+                throw new IOException("unknown journal checkpoint version " + version);
+            }
+            long[] acked = new long[in.readInt()];
+            for (int i = 0; i < acked.length; i++) {
+                acked[i] = in.readLong();
+            }
+            return acked;
+        }
+    }
+
+    private void writeCheckpoint(long[] acked) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(acked.length);
+            for (long offset : acked) {
+                out.writeLong(offset);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        }
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param size file is extended to this size if it is smaller
+     */
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        stopReaders();
+        chains.close();
+        syncer.shutdownNow();
+        try {
+            sync();
+        } catch (IOException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+        Metrics.removeGauge("journal.backlog_bytes");
+        for (Partition partition : partitions) {
+            Metrics.removeGauge("queue.lane." + partition.index + ".backlog_bytes");
+        }
+    }
+
+    private final class Reader {
+        private final Partition partition;
+        private final ForwardJobListener listener;
+        private final Thread thread;
+        private final Semaphore window;
+        private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        private volatile boolean stopped;
+
+        Reader(Partition partition, ForwardJobListener listener) {
+            this.partition = partition;
+            this.listener = listener;
+            this.window = new Semaphore(maxInFlight);
+            this.thread = new Thread(() -> partition.read(this), "journal-reader-" + partition.index);
+            this.thread.setDaemon(true);
+        }
+
+        void stop() {
+            stopped = true;
+            synchronized (partition) {
+                partition.notifyAll();
+            }
+            thread.interrupt();
+        }
+    }
+
+    private static final class InFlight {
+        private final long endOffset;
+        private boolean done;
+
+        InFlight(long endOffset) {
+            this.endOffset = endOffset;
+        }
+    }
+
+    private final class Partition {
+        private final int index;
+        private final Path directory;
+        private final LaneStats stats;
+        // segment files by offset of the first record
+        private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+
+        // writer state, guarded by this
+        private MappedByteBuffer writeBuffer;
+        private long writeBase;
+        private volatile long writeOffset;
+
+        // current reader, changed under lock of the queue
+        private volatile Reader reader;
+        // reader state, used by reader thread only
+        private MappedByteBuffer readBuffer;
+        private long readBase;
+        private long readOffset;
+        private volatile long ackedOffset;
+
+        Partition(int index, long checkpoint) throws IOException {
+            this.index = index;
+            this.directory = JournalForwardQueue.this.directory.resolve(PARTITION_PREFIX + index);
+            this.stats = new LaneStats(index);
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+            }
+            if (segments.isEmpty()) {
+                openSegment(checkpoint);
+            } else {
+                recover();
+            }
+            ackedOffset = Math.max(segments.firstKey(), Math.min(checkpoint, writeOffset));
+            readOffset = ackedOffset;
+            Metrics.gauge("queue.lane." + index + ".backlog_bytes", () -> writeOffset - ackedOffset);
+        }
+
+        /**
+         * Finds end of the last segment, a record broken by crash and everything after it is erased.
+         */
+        private void recover() throws IOException {
+            Map.Entry<Long, Path> last = segments.lastEntry();
+            writeBuffer = map(last.getValue(), segmentSize);
+            writeBase = last.getKey();
+            int position = 0;
+            while (position + HEADER_SIZE <= writeBuffer.capacity()) {
+                int length = writeBuffer.getInt(position);
+                if (length == END_OF_SEGMENT) {
+                    openSegment(writeBase + writeBuffer.capacity());
+                    return;
+                }
+                if (length <= 0 || position + HEADER_SIZE + length > writeBuffer.capacity()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                ByteBuffer record = writeBuffer.duplicate();
+                record.position(position + HEADER_SIZE);
+                record.get(data);
+                if (crc(data) != writeBuffer.getInt(position + 4)) {
+                    break;
+                }
+                position += HEADER_SIZE + length;
+            }
+            if (position < writeBuffer.capacity() && writeBuffer.get(position) != 0) {
+                logger.warn("journal partition " + index + " is truncated at offset " + (writeBase + position));
+            }
+            for (int i = position; i < writeBuffer.capacity(); i++) {
+                writeBuffer.put(i, (byte) 0);
+            }
+            writeOffset = writeBase + position;
+        }
+
+        private void openSegment(long base) throws IOException {
+            if (writeBuffer != null && fsyncPolicy != FsyncPolicy.NEVER) {
+                writeBuffer.force();
+            }
+            Path file = directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+            writeBuffer = map(file, segmentSize);
+            writeBase = base;
+            writeOffset = base;
+            segments.put(base, file);
+        }
+
+        synchronized void append(byte[] data) throws IOException {
+            int position = (int) (writeOffset - writeBase);
+            // 4 bytes are always left for end of segment mark
+            if (position + HEADER_SIZE + data.length + 4 > writeBuffer.capacity()) {
+                writeBuffer.putInt(position, END_OF_SEGMENT);
+                openSegment(writeBase + writeBuffer.capacity());
+                position = 0;
+            }
+            ByteBuffer record = writeBuffer.duplicate();
+            record.position(position + 4);
+            record.putInt(crc(data));
+            record.put(data);
+            // length is written last, so reader never sees a half written record
+            writeBuffer.putInt(position, data.length);
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                long start = System.nanoTime();
+                writeBuffer.force();
+                fsyncTimer.recordSince(start);
+            }
+            writeOffset = writeBase + position + HEADER_SIZE + data.length;
+            notifyAll();
+        }
+
+        synchronized void force() {
+            long start = System.nanoTime();
+            writeBuffer.force();
+            fsyncTimer.recordSince(start);
+        }
+
+        void deleteSegmentsBefore(long offset) throws IOException {
+            Map.Entry<Long, Path> segment = segments.firstEntry();
+            while (segment != null) {
+                Long next = segments.higherKey(segment.getKey());
+                if (next == null || next > offset) {
+                    return;
+                }
+                segments.remove(segment.getKey());
+                Files.deleteIfExists(segment.getValue());
+                segment = segments.firstEntry();
+            }
+        }
+
+        void startReader(ForwardJobListener listener) {
+            reader = new Reader(this, listener);
+            reader.thread.start();
+        }
+
+        void read(Reader reader) {
+            // jobs not acknowledged by previous reader are delivered again
+            readOffset = ackedOffset;
+            readBuffer = null;
+            try {
+                byte[] data;
+                while ((data = next(reader)) != null) {
+                    reader.window.acquire();
+                    InFlight record = new InFlight(readOffset);
+                    synchronized (reader.inFlight) {
+                        reader.inFlight.add(record);
+                    }
+                    ForwardJob job;
+                    try {
+                        job = ForwardJobCodec.decode(data);
+                    } catch (IOException ex) {
+                        logger.error("cannot decode job before offset " + readOffset + " of journal partition " + index, ex);
+                        acknowledge(reader, record);
+                        continue;
+                    }
+                    long start = stats.started();
+                    // partition holds many destinations, only jobs of one destination wait for each other
+                    chains.submit(job.getChatIdTo(), () -> Redelivery.deliver(reader.listener, job)).whenComplete((delivered, ex) -> {
+                        stats.completed(start);
+                        // job interrupted by close is not acknowledged and will be delivered after restart,
+                        // dropped job is lost as it was with ActiveMQ dead letter queue
+                        if (Boolean.TRUE.equals(delivered) || !reader.stopped) {
+                            acknowledge(reader, record);
+                        }
+                    });
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                logger.error("journal partition " + index + " reader stopped", ex);
+            }
+        }
+
+        /**
+         * Jobs complete in any order, acknowledged offset moves over completed jobs only.
+         */
+        private void acknowledge(Reader reader, InFlight record) {
+            synchronized (reader.inFlight) {
+                record.done = true;
+                while (!reader.inFlight.isEmpty() && reader.inFlight.peekFirst().done) {
+                    long offset = reader.inFlight.pollFirst().endOffset;
+                    // late completion of stopped reader must not move offset of the next one
+                    if (this.reader == reader) {
+                        ackedOffset = offset;
+                    }
+                }
+            }
+            reader.window.release();
+        }
+
+        /**
+         * @return next record, waits for it if partition is read to the end, null if reader is stopped
+         */
+        private byte[] next(Reader reader) throws InterruptedException, IOException {
+            while (true) {
+                synchronized (this) {
+                    while (!reader.stopped && readOffset >= writeOffset) {
+                        wait();
+                    }
+                    if (reader.stopped) {
+                        return null;
+                    }
+                }
+                if (readBuffer == null || readOffset >= readBase + readBuffer.capacity()) {
+                    Map.Entry<Long, Path> segment = segments.floorEntry(readOffset);
+                    readBuffer = map(segment.getValue(), 0);
+                    readBase = segment.getKey();
+                }
+                int position = (int) (readOffset - readBase);
+                int length = readBuffer.getInt(position);
+                if (length == END_OF_SEGMENT) {
+                    readOffset = readBase + readBuffer.capacity();
+                    continue;
+                }
+                byte[] data = null;
+                if (length > 0 && position + HEADER_SIZE + length <= readBuffer.capacity()) {
+                    data = new byte[length];
+                    ByteBuffer record = readBuffer.duplicate();
+                    record.position(position + HEADER_SIZE);
+                    record.get(data);
+                }
+                if (data == null || crc(data) != readBuffer.getInt(position + 4)) {
+                    logger.error("broken record at offset " + readOffset + " of journal partition " + index + ", rest of segment is skipped");
+                    readOffset = readBase + readBuffer.capacity();
+                    continue;
+                }
+                readOffset += HEADER_SIZE + length;
+                return data;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.telebot.queue;
+
+import ru.telebot.Metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one consumer lane: jobs taken and not completed, completed jobs and time from delivery to completion.
+ * Throughput is the growth of completed counter between reports.
+ */
+class LaneStats {
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder completed;
+    private final Metrics.Timer jobTimer;
+
+    LaneStats(int lane) {
+        completed = Metrics.counter("queue.lane." + lane + ".completed");
+        jobTimer = Metrics.timer("queue.lane." + lane + ".job");
+        Metrics.gauge("queue.lane." + lane + ".inflight", inFlight::sum);
+    }
+
+    long started() {
+        inFlight.increment();
+        return System.nanoTime();
+    }
+
+    void completed(long start) {
+        inFlight.decrement();
+        completed.increment();
+        jobTimer.recordSince(start);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.telebot.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.telebot.Metrics;
+import ru.telebot.domain.ForwardJob;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers job to listener, failed delivery is repeated after delay without blocking the consumer.
+ * Delivery with its redeliveries is one link of the destination chain, so later jobs of the destination wait for it.
+ */
+class Redelivery {
+    private static final Logger logger = LoggerFactory.getLogger(Redelivery.class);
+
+    // same as default redelivery policy of ActiveMQ
+    static final int MAX_REDELIVERIES = 6;
+    static final long REDELIVERY_DELAY = 1000;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "queue-redelivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final LongAdder redelivered = Metrics.counter("queue.redelivered");
+    private static final LongAdder dropped = Metrics.counter("queue.dropped");
+
+    /**
+     * @return true when listener processed the job, false when job is dropped after all redeliveries
+     */
+    static CompletableFuture<Boolean> deliver(ForwardJobListener listener, ForwardJob job) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attempt(listener, job, 0, result);
+        return result;
+    }
+
+    private static void attempt(ForwardJobListener listener, ForwardJob job, int attempt, CompletableFuture<Boolean> result) {
+        CompletableFuture<Void> stage;
+        try {
+            stage = listener.onJob(job).toCompletableFuture();
+        } catch (Exception ex) {
+            stage = new CompletableFuture<>();
+            stage.completeExceptionally(ex);
+        }
+        stage.whenComplete((v, ex) -> {
+            if (ex == null) {
+                result.complete(true);
+            } else if (attempt < MAX_REDELIVERIES) {
+                logger.error(ex.getMessage(), ex);
+                redelivered.increment();
+                timer.schedule(() -> attempt(listener, job, attempt + 1, result), REDELIVERY_DELAY, TimeUnit.MILLISECONDS);
+            } else {
+                logger.error("job dropped after " + MAX_REDELIVERIES + " redeliveries: " + job, ex);
+                dropped.increment();
+                result.complete(false);
+            }
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package org.drinkless.tdlib;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherTest {
+
+    @Test
+    public void updatesKeepOrderOnManyThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicLong handled = new AtomicLong();
+        Dispatcher dispatcher = new Dispatcher(executor, 16, nanos -> handled.incrementAndGet());
+        List<Integer> updates = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1000 + 100);
+        for (int i = 0; i < 1000; i++) {
+            final int update = i;
+            dispatcher.dispatch(true, () -> {
+                updates.add(update);
+                done.countDown();
+            });
+            if (i % 10 == 0) {
+                dispatcher.dispatch(false, done::countDown);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) updates.get(i));
+        }
+        assertEquals(1100, handled.get());
+        assertEquals(0, dispatcher.getBacklog());
+    }
+
+    @Test
+    public void fullBacklogDoesNotBlockReceivingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Dispatcher dispatcher = new Dispatcher(executor, 2, null);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable slow = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        dispatcher.dispatch(false, slow);
+        assertFalse(dispatcher.isFull());
+        dispatcher.dispatch(false, slow);
+        assertTrue(dispatcher.isFull());
+
+        // results of one receive are dispatched at once, the client is skipped by pollers until backlog goes down
+        dispatcher.dispatch(false, () -> { });
+        assertEquals(3, dispatcher.getBacklog());
+
+        Thread waiting = new Thread(() -> {
+            try {
+                while (dispatcher.isFull()) {
+                    dispatcher.awaitCapacity(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        waiting.join(200);
+        assertTrue(waiting.isAlive());
+        release.countDown();
+        waiting.join(5000);
+        assertFalse(waiting.isAlive());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getBacklog());
+    }
+}
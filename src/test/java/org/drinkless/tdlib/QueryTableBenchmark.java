@@ -0,0 +1,94 @@
+package org.drinkless.tdlib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pending query table of Client against ConcurrentHashMap used before, under concurrent send and receive:
+ * sender threads put queries, one receiver thread removes them in order of ids as the TDLib thread does.
+ * Numbers include the hand-off between threads, so the difference is smaller than the cost of the table itself.
+ * Run main method from IDE or with plain java using test classpath.
+ */
+public class QueryTableBenchmark {
+
+    private static final int SENDERS = 4;
+    private static final int QUERIES = 2000000;
+    private static final int ROUNDS = 5;
+    // queries waiting for answer, as in the bot they are limited by queue in-flight window
+    private static final int IN_FLIGHT = 512;
+
+    interface Table {
+        void put(long id, Object value);
+
+        Object remove(long id);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            QueryTable<Object> queryTable = new QueryTable<>(1024);
+            long table = run(new Table() {
+                @Override
+                public void put(long id, Object value) {
+                    queryTable.put(id, value);
+                }
+
+                @Override
+                public Object remove(long id) {
+                    return queryTable.remove(id);
+                }
+            });
+            ConcurrentHashMap<Long, Object> map = new ConcurrentHashMap<>();
+            long hashMap = run(new Table() {
+                @Override
+                public void put(long id, Object value) {
+                    map.put(id, value);
+                }
+
+                @Override
+                public Object remove(long id) {
+                    return map.remove(id);
+                }
+            });
+            System.out.println("round " + round + ": query table " + table / QUERIES + " ns, concurrent hash map " + hashMap / QUERIES + " ns per query");
+        }
+    }
+
+    private static long run(Table table) throws InterruptedException {
+        Object handler = new Object();
+        AtomicLong queryId = new AtomicLong();
+        // receiver removes only queries which were put, as answer comes after the query is sent
+        AtomicLongArray sent = new AtomicLongArray(QUERIES + 1);
+        AtomicLong received = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(SENDERS + 1);
+        long started = System.nanoTime();
+        for (int i = 0; i < SENDERS; i++) {
+            new Thread(() -> {
+                long id;
+                while ((id = queryId.incrementAndGet()) <= QUERIES) {
+                    while (id - received.get() > IN_FLIGHT) {
+                        Thread.yield();
+                    }
+                    table.put(id, handler);
+                    sent.lazySet((int) id, 1);
+                }
+                done.countDown();
+            }).start();
+        }
+        new Thread(() -> {
+            for (int id = 1; id <= QUERIES; id++) {
+                while (sent.get(id) == 0) {
+                    Thread.yield();
+                }
+                if (table.remove(id) == null) {
+                    throw new IllegalStateException("query " + id + " is lost");
+                }
+                received.lazySet(id);
+            }
+            done.countDown();
+        }).start();
+        done.await();
+        return System.nanoTime() - started;
+    }
+}
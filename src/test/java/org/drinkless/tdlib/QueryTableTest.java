@@ -0,0 +1,73 @@
+package org.drinkless.tdlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryTableTest {
+
+    @Test
+    public void slotTakenByOldQueryGoesToOverflow() {
+        QueryTable<String> table = new QueryTable<>(4);
+        table.put(1, "first");
+        // same slot as query 1, which is not answered yet
+        table.put(5, "fifth");
+        table.put(2, "second");
+        assertEquals(3, table.size());
+
+        List<Long> visited = new ArrayList<>();
+        table.forEach((id, value) -> visited.add(id));
+        assertEquals(3, visited.size());
+        assertTrue(visited.contains(5L));
+
+        assertEquals("fifth", table.remove(5));
+        assertNull(table.remove(5));
+        assertEquals("first", table.remove(1));
+        assertEquals("second", table.remove(2));
+        assertNull(table.remove(3));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void concurrentSendAndReceive() throws Exception {
+        QueryTable<Long> table = new QueryTable<>(64);
+        AtomicLong queryId = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        ExecutorService senders = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            senders.execute(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    long id = queryId.incrementAndGet();
+                    table.put(id, id);
+                    // answers come in different order than queries
+                    if (i % 2 == 1) {
+                        if (table.remove(id) != null) {
+                            received.incrementAndGet();
+                        }
+                        if (table.remove(id - 1) != null) {
+                            received.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        senders.shutdown();
+        assertTrue(senders.awaitTermination(30, TimeUnit.SECONDS));
+        table.forEach((id, value) -> {
+            if (table.remove(id) != null) {
+                received.incrementAndGet();
+            }
+        });
+        assertEquals(80000, received.get());
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,51 @@
+package ru.telebot;
+
+import ru.telebot.domain.ForwardJob;
+import ru.telebot.queue.ForwardJobCodec;
+
+/**
+ * Cost of content per destination when every destination builds its own copy and when copies come from the cache.
+ * Jobs are decoded from the queue format as QueueHandler gets them, so each destination has its own job instance.
+ * Run main method from IDE or with plain java using test classpath.
+ */
+public class ContentRendererBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int MESSAGES = 500000;
+    private static final int[] DESTINATIONS = {1, 10, 100};
+
+    public static void main(String[] args) throws Exception {
+        for (int destinations : DESTINATIONS) {
+            ForwardJob[] jobs = jobs(destinations);
+            run(new ContentRenderer(0), jobs, WARMUP / destinations);
+            run(new ContentRenderer(1000), jobs, WARMUP / destinations);
+
+            int messages = MESSAGES / destinations;
+            long perCopy = run(new ContentRenderer(0), jobs, messages) / (messages * destinations);
+            long cached = run(new ContentRenderer(1000), jobs, messages) / (messages * destinations);
+            System.out.println(destinations + " destinations: build for each " + perCopy + " ns, cached " + cached + " ns per destination");
+        }
+    }
+
+    private static ForwardJob[] jobs(int destinations) throws Exception {
+        byte[] data = ForwardJobCodec.encode(ForwardJobCodecTest.sampleJob());
+        ForwardJob[] jobs = new ForwardJob[destinations];
+        for (int i = 0; i < destinations; i++) {
+            jobs[i] = ForwardJobCodec.decode(data);
+            jobs[i].setChatIdTo(jobs[i].getChatIdTo() + i);
+        }
+        return jobs;
+    }
+
+    private static long run(ContentRenderer renderer, ForwardJob[] jobs, int messages) {
+        long started = System.nanoTime();
+        for (int message = 0; message < messages; message++) {
+            for (ForwardJob job : jobs) {
+                // every message is new, as it is in the real flow
+                job.setMessageId(message);
+                renderer.render(job, true);
+            }
+        }
+        return System.nanoTime() - started;
+    }
+}
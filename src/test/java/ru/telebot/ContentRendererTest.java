@@ -0,0 +1,43 @@
+package ru.telebot;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.Test;
+import ru.telebot.domain.ForwardJob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContentRendererTest {
+
+    @Test
+    public void sourceEntitiesAreNotChanged() {
+        ForwardJob job = ForwardJobCodecTest.sampleJob();
+        String header = job.getTitle() + " : " + job.getDate() + " \n";
+        ContentRenderer renderer = new ContentRenderer(0);
+
+        TdApi.InputMessageVideo first = (TdApi.InputMessageVideo) renderer.render(job, true);
+        TdApi.InputMessageVideo second = (TdApi.InputMessageVideo) renderer.render(job, true);
+        assertNotSame(first, second);
+        assertEquals(13, job.getEntities()[1].offset);
+        assertEquals(13 + header.length(), first.caption.entities[1].offset);
+        assertEquals(13 + header.length(), second.caption.entities[1].offset);
+        assertTrue(first.caption.text.startsWith(header));
+    }
+
+    @Test
+    public void destinationsShareContent() {
+        ForwardJob job = ForwardJobCodecTest.sampleJob();
+        ForwardJob otherDestination = ForwardJobCodecTest.sampleJob();
+        otherDestination.setChatIdTo(job.getChatIdTo() + 1);
+        ContentRenderer renderer = new ContentRenderer(10);
+
+        TdApi.InputMessageContent content = renderer.render(job, true);
+        assertSame(content, renderer.render(otherDestination, true));
+        TdApi.InputMessageVideo albumPart = (TdApi.InputMessageVideo) renderer.render(job, false);
+        assertNotSame(content, albumPart);
+        assertEquals(job.getText(), albumPart.caption.text);
+        assertEquals(13, albumPart.caption.entities[1].offset);
+    }
+}
@@ -0,0 +1,137 @@
+package ru.telebot;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.telebot.dao.DbHelper;
+import ru.telebot.domain.ForwardedMessage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DedupServiceTest {
+
+    private File dbFile;
+    private HikariDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = File.createTempFile("dedup", ".sqlite");
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        dataSource.setAutoCommit(false);
+        dataSource.setMaximumPoolSize(2);
+        try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+            // schema before source chat was added to the key
+            st.executeUpdate("CREATE TABLE forwarded_message (msg_id BIGINT NOT NULL, chat_id BIGINT NOT NULL, PRIMARY KEY (msg_id, chat_id))");
+            st.executeUpdate("insert into forwarded_message (msg_id, chat_id) values (1, 100)");
+            connection.commit();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void keyContainsSourceChat() throws Exception {
+        DbHelper.migrate(dataSource);
+        ForwardedMessagePartitions partitions = new ForwardedMessagePartitions(dataSource);
+        partitions.reload();
+        assertEquals(1, partitions.get().size());
+        ForwardedMessageWriter writer = new ForwardedMessageWriter(dataSource, partitions, 60000, 1000);
+        DedupService dedup = new DedupService(dataSource, partitions, writer, 10, 1000, 0.01);
+        dedup.warmUp();
+
+        assertTrue(dedup.wasForwarded(0, 1, 100));
+        assertFalse(dedup.wasForwarded(5, 1, 100));
+
+        dedup.markForwarded(5, 1, 100);
+        dedup.markForwarded(6, 1, 100);
+        assertTrue(dedup.wasForwarded(5, 1, 100));
+        assertTrue(dedup.wasForwarded(6, 1, 100));
+        assertFalse(dedup.wasForwarded(5, 1, 200));
+        assertTrue(writer.isPending(new ForwardedMessage(5, 1, 100)));
+
+        // records are written on close, new instance has to see them after warm up
+        writer.close();
+        assertFalse(writer.isPending(new ForwardedMessage(5, 1, 100)));
+        DedupService restarted = new DedupService(dataSource, partitions, new ForwardedMessageWriter(dataSource, partitions, 60000, 1000), 1, 1000, 0.01);
+        restarted.warmUp();
+        assertTrue(restarted.wasForwarded(5, 1, 100));
+        assertTrue(restarted.wasForwarded(6, 1, 100));
+        assertFalse(restarted.wasForwarded(7, 1, 100));
+    }
+
+    @Test
+    public void expiredPartitionsAreDropped() throws Exception {
+        DbHelper.migrate(dataSource);
+        ForwardedMessagePartitions partitions = new ForwardedMessagePartitions(dataSource);
+        partitions.reload();
+        ForwardedMessageWriter writer = new ForwardedMessageWriter(dataSource, partitions, 60000, 1000);
+        long day = 24 * 60 * 60;
+        long now = Instant.now().getEpochSecond();
+        writer.add(new ForwardedMessage(1, 1, 100, now - 40 * day));
+        writer.add(new ForwardedMessage(1, 2, 100, now - 40 * day));
+        writer.add(new ForwardedMessage(1, 3, 100, now - 2 * day));
+        writer.close();
+        assertEquals(3, partitions.get().size());
+
+        // record from the legacy table is in today's partition
+        assertEquals(2, partitions.expire(LocalDate.now(ZoneOffset.UTC).minusDays(30)));
+        assertEquals(2, partitions.get().size());
+        partitions.reload();
+        assertEquals(2, partitions.get().size());
+
+        DedupService dedup = new DedupService(dataSource, partitions, new ForwardedMessageWriter(dataSource, partitions, 60000, 1000), 10, 1000, 0.01);
+        dedup.rebuildBloomFilter();
+        assertFalse(dedup.wasForwarded(1, 1, 100));
+        assertTrue(dedup.wasForwarded(1, 3, 100));
+        assertTrue(dedup.wasForwarded(0, 1, 100));
+    }
+
+    @Test
+    public void lookupWorksWithMorePartitionsThanCompoundSelectLimit() throws Exception {
+        DbHelper.migrate(dataSource);
+        long day = 24 * 60 * 60;
+        long now = Instant.now().getEpochSecond();
+        ForwardedMessagePartitions partitions = new ForwardedMessagePartitions(dataSource);
+        ForwardedMessageWriter writer = new ForwardedMessageWriter(dataSource, partitions, 60000, 1000);
+        for (int i = 0; i < 600; i++) {
+            writer.add(new ForwardedMessage(1, i, 100, now - i * day));
+        }
+        writer.close();
+        assertTrue(partitions.get().size() > 500);
+
+        assertTrue(DbHelper.messageWasForwarderToChannel(dataSource, partitions.get(), 1, 599, 100));
+        assertFalse(DbHelper.messageWasForwarderToChannel(dataSource, partitions.get(), 1, 599, 200));
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(new ForwardedMessage(-100, i, 42));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(new ForwardedMessage(-100, i, 42)));
+            if (filter.mightContain(new ForwardedMessage(-101, i, 42))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+        assertEquals(7, filter.getHashCount());
+    }
+}
@@ -0,0 +1,76 @@
+package ru.telebot;
+
+import org.drinkless.tdlib.TdApi;
+import ru.telebot.domain.ForwardJob;
+import ru.telebot.queue.ForwardJobCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares Java serialization of TdApi.UpdateNewMessage, which was put to the queue before, with ForwardJobCodec.
+ * Run main method from IDE or with plain java using test classpath.
+ */
+public class ForwardJobCodecBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        TdApi.UpdateNewMessage update = sampleUpdate();
+        ForwardJob job = ForwardJobCodecTest.sampleJob();
+
+        System.out.println("java serialization size: " + serialize(update).length + " bytes");
+        System.out.println("forward job codec size:  " + ForwardJobCodec.encode(job).length + " bytes");
+
+        for (int i = 0; i < WARMUP; i++) {
+            deserialize(serialize(update));
+            ForwardJobCodec.decode(ForwardJobCodec.encode(job));
+        }
+
+        long started = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            deserialize(serialize(update));
+        }
+        System.out.println("java serialization round trip: " + (System.nanoTime() - started) / ITERATIONS + " ns");
+
+        started = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ForwardJobCodec.decode(ForwardJobCodec.encode(job));
+        }
+        System.out.println("forward job codec round trip:  " + (System.nanoTime() - started) / ITERATIONS + " ns");
+    }
+
+    static TdApi.UpdateNewMessage sampleUpdate() {
+        ForwardJob job = ForwardJobCodecTest.sampleJob();
+        TdApi.File file = new TdApi.File(17, 10485760, 10485760,
+                new TdApi.LocalFile("", true, true, false, false, 0, 0, 0),
+                new TdApi.RemoteFile(job.getRemoteFileId(), false, true, 10485760));
+        TdApi.File thumbnailFile = new TdApi.File(16, 5120, 5120,
+                new TdApi.LocalFile("", true, true, false, false, 0, 0, 0),
+                new TdApi.RemoteFile("AAQCABN2ZtwOAAQZ8Vhmn5Vdk5MRAAIC", false, true, 5120));
+        TdApi.Video video = new TdApi.Video(job.getDuration(), job.getWidth(), job.getHeight(), "video.mp4", "video/mp4",
+                false, true, new TdApi.PhotoSize("m", thumbnailFile, 320, 180), file);
+        TdApi.MessageVideo content = new TdApi.MessageVideo(video, new TdApi.FormattedText(job.getText(), job.getEntities()), false);
+        TdApi.Message message = new TdApi.Message(job.getMessageId(), 0, job.getSourceChatId(), null, false, false, true,
+                false, false, true, false, job.getDate(), 0, null, 0, 0, 0, 0, "", 1500, 0, content, null);
+        return new TdApi.UpdateNewMessage(message);
+    }
+
+    static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.telebot;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.Test;
+import ru.telebot.domain.ForwardJob;
+import ru.telebot.queue.ForwardJobCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ForwardJobCodecTest {
+
+    static ForwardJob sampleJob() {
+        ForwardJob job = new ForwardJob();
+        job.setChatIdTo(-1001234567890L);
+        job.setSourceChatId(-1009876543210L);
+        job.setMessageId(1234567L << 20);
+        job.setTitle("Source channel канал");
+        job.setDate(1568450000);
+        job.setKind(ForwardJob.ContentKind.VIDEO);
+        job.setText("caption with link and code");
+        job.setEntities(new TdApi.TextEntity[]{
+                new TdApi.TextEntity(0, 7, new TdApi.TextEntityTypeBold()),
+                new TdApi.TextEntity(13, 4, new TdApi.TextEntityTypeTextUrl("https://example.com")),
+                new TdApi.TextEntity(22, 4, new TdApi.TextEntityTypePreCode("java")),
+                new TdApi.TextEntity(8, 4, new TdApi.TextEntityTypeMentionName(42))
+        });
+        job.setRemoteFileId("BAADAgADZQQAAl8bcUrP1kGKf4_BbgI");
+        job.setWidth(1280);
+        job.setHeight(720);
+        job.setDuration(95);
+        job.setSupportsStreaming(true);
+        return job;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ForwardJob job = sampleJob();
+        byte[] data = ForwardJobCodec.encode(job);
+        assertEquals(ForwardJobCodec.VERSION, data[0]);
+
+        ForwardJob decoded = ForwardJobCodec.decode(data);
+        assertEquals(job.getChatIdTo(), decoded.getChatIdTo());
+        assertEquals(job.getSourceChatId(), decoded.getSourceChatId());
+        assertEquals(job.getMessageId(), decoded.getMessageId());
+        assertEquals(job.getTitle(), decoded.getTitle());
+        assertEquals(job.getDate(), decoded.getDate());
+        assertEquals(job.getKind(), decoded.getKind());
+        assertEquals(job.getText(), decoded.getText());
+        assertEquals(job.getRemoteFileId(), decoded.getRemoteFileId());
+        assertEquals(job.getWidth(), decoded.getWidth());
+        assertEquals(job.getHeight(), decoded.getHeight());
+        assertEquals(job.getDuration(), decoded.getDuration());
+        assertEquals(job.isSupportsStreaming(), decoded.isSupportsStreaming());
+        assertEquals(4, decoded.getEntities().length);
+        assertEquals(13, decoded.getEntities()[1].offset);
+        assertEquals("https://example.com", ((TdApi.TextEntityTypeTextUrl) decoded.getEntities()[1].type).url);
+        assertEquals("java", ((TdApi.TextEntityTypePreCode) decoded.getEntities()[2].type).language);
+        assertEquals(42, ((TdApi.TextEntityTypeMentionName) decoded.getEntities()[3].type).userId);
+    }
+
+    @Test
+    public void nullsAreKept() throws Exception {
+        ForwardJob job = new ForwardJob();
+        job.setKind(ForwardJob.ContentKind.TEXT);
+        job.setText("text");
+        ForwardJob decoded = ForwardJobCodec.decode(ForwardJobCodec.encode(job));
+        assertNull(decoded.getTitle());
+        assertNull(decoded.getRemoteFileId());
+        assertEquals(0, decoded.getEntities().length);
+    }
+
+    @Test
+    public void albumRoundTrip() throws Exception {
+        ForwardJob first = sampleJob();
+        ForwardJob second = sampleJob();
+        second.setMessageId(first.getMessageId() + (1 << 20));
+        second.setKind(ForwardJob.ContentKind.PHOTO);
+        second.setText("");
+        ForwardJob album = sampleJob();
+        album.setKind(ForwardJob.ContentKind.ALBUM);
+        album.setItems(Arrays.asList(first, second));
+
+        ForwardJob decoded = ForwardJobCodec.decode(ForwardJobCodec.encode(album));
+        assertEquals(ForwardJob.ContentKind.ALBUM, decoded.getKind());
+        assertEquals(2, decoded.getItems().size());
+        assertEquals(second.getMessageId(), decoded.getItems().get(1).getMessageId());
+        assertEquals(ForwardJob.ContentKind.PHOTO, decoded.getItems().get(1).getKind());
+        assertEquals(album.getChatIdTo(), decoded.getItems().get(1).getChatIdTo());
+        assertEquals(4, decoded.getItems().get(0).getEntities().length);
+    }
+
+    @Test
+    public void batchKeepsAccountAndAlbumIds() throws Exception {
+        ForwardJob item = sampleJob();
+        item.setMediaAlbumId(77);
+        ForwardJob batch = sampleJob();
+        batch.setKind(ForwardJob.ContentKind.BATCH);
+        batch.setAccount("79091234567");
+        batch.setItems(Arrays.asList(item));
+
+        ForwardJob decoded = ForwardJobCodec.decode(ForwardJobCodec.encode(batch));
+        assertEquals("79091234567", decoded.getAccount());
+        assertEquals(77, decoded.getItems().get(0).getMediaAlbumId());
+    }
+
+    @Test
+    public void version1IsDecoded() throws Exception {
+        byte[] data = ForwardJobCodec.encode(sampleJob());
+        // version 1 has no album parts count, album id and account at the end
+        byte[] old = Arrays.copyOf(data, data.length - 2 - 8 - 4);
+        old[0] = 1;
+        ForwardJob decoded = ForwardJobCodec.decode(old);
+        assertEquals(ForwardJob.ContentKind.VIDEO, decoded.getKind());
+        assertNull(decoded.getItems());
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownVersionIsRejected() throws Exception {
+        byte[] data = ForwardJobCodec.encode(sampleJob());
+        data[0] = 99;
+        ForwardJobCodec.decode(data);
+    }
+
+    @Test
+    public void muchSmallerThanSerializedUpdate() throws Exception {
+        assertTrue(ForwardJobCodec.encode(sampleJob()).length * 5 < ForwardJobCodecBenchmark.serialize(ForwardJobCodecBenchmark.sampleUpdate()).length);
+    }
+}
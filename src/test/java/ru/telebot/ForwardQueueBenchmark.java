@@ -0,0 +1,89 @@
+package ru.telebot;
+
+import ru.telebot.domain.ForwardJob;
+import ru.telebot.queue.ForwardQueue;
+import ru.telebot.queue.ForwardQueues;
+import ru.telebot.queue.JournalForwardQueue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and enqueue to delivery latency of forward queue backends.
+ * Run main method with test classpath, backends can be passed as arguments.
+ */
+public class ForwardQueueBenchmark {
+
+    private static final int JOBS = 5000;
+    private static final int MAX_IN_FLIGHT = 100;
+    private static final int PRODUCERS = 4;
+    private static final int SENDERS = 8;
+
+    public static void main(String[] args) throws Exception {
+        String[] backends = args.length > 0 ? args : new String[]{"broker", "vm", "journal"};
+        for (String backend : backends) {
+            run(backend);
+        }
+    }
+
+    private static ForwardQueue open(String backend, Path dataDirectory) throws BotException {
+        if (backend.startsWith("journal")) {
+            // journal-always, journal-interval, journal-never
+            String fsync = backend.contains("-") ? backend.substring(backend.indexOf('-') + 1) : "interval";
+            return new JournalForwardQueue(dataDirectory, 4, 64 * 1024 * 1024, JournalForwardQueue.FsyncPolicy.parse(fsync), 1000, MAX_IN_FLIGHT);
+        }
+        return ForwardQueues.create(backend, dataDirectory.toString(), 4, MAX_IN_FLIGHT, PRODUCERS);
+    }
+
+    private static void run(String backend) throws Exception {
+        Path dataDirectory = Files.createTempDirectory("queue-benchmark-" + backend);
+        try (ForwardQueue queue = open(backend, dataDirectory)) {
+            long[] latencies = new long[JOBS];
+            CountDownLatch received = new CountDownLatch(JOBS);
+            queue.subscribe(job -> {
+                // message id is used to pass index of job, chat id to pass send time
+                latencies[(int) job.getMessageId()] = System.nanoTime() - job.getChatIdTo();
+                received.countDown();
+                return CompletableFuture.completedFuture(null);
+            });
+
+            // many accounts put jobs to the queue at the same time
+            Thread[] senders = new Thread[SENDERS];
+            long started = System.nanoTime();
+            for (int s = 0; s < SENDERS; s++) {
+                int first = s;
+                senders[s] = new Thread(() -> {
+                    ForwardJob job = ForwardJobCodecTest.sampleJob();
+                    try {
+                        for (int i = first; i < JOBS; i += SENDERS) {
+                            job.setMessageId(i);
+                            job.setChatIdTo(System.nanoTime());
+                            queue.send(job);
+                        }
+                    } catch (BotException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                });
+                senders[s].start();
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            long enqueued = System.nanoTime() - started;
+            if (!received.await(5, TimeUnit.MINUTES)) {
+                System.out.println(backend + ": not all jobs received");
+                return;
+            }
+            long elapsed = System.nanoTime() - started;
+            Arrays.sort(latencies);
+            System.out.println(backend + ": " + (JOBS * 1_000_000_000L / enqueued) + " jobs/s enqueued, " +
+                    (JOBS * 1_000_000_000L / elapsed) + " jobs/s delivered" +
+                    ", latency p50=" + TimeUnit.NANOSECONDS.toMicros(latencies[JOBS / 2]) + "us" +
+                    ", p99=" + TimeUnit.NANOSECONDS.toMicros(latencies[JOBS * 99 / 100]) + "us");
+        }
+    }
+}
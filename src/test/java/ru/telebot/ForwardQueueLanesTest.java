@@ -0,0 +1,64 @@
+package ru.telebot;
+
+import org.junit.Test;
+import ru.telebot.domain.ForwardJob;
+import ru.telebot.queue.ForwardQueue;
+import ru.telebot.queue.ForwardQueues;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ForwardQueueLanesTest {
+
+    private static final int DESTINATIONS = 20;
+    private static final int JOBS = 400;
+
+    @Test
+    public void destinationsAreSpreadOverLanesInOrder() throws Exception {
+        Path dataDirectory = Files.createTempDirectory("lanes");
+        Map<Long, List<Long>> received = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(JOBS);
+        try (ForwardQueue queue = ForwardQueues.create("vm", dataDirectory.toString(), 4, 10, 2)) {
+            queue.subscribe(job -> {
+                threads.add(Thread.currentThread().getName());
+                // lane of the destination is the only one adding to the list
+                received.computeIfAbsent(job.getChatIdTo(), k -> new ArrayList<>()).add(job.getMessageId());
+                done.countDown();
+                return CompletableFuture.completedFuture(null);
+            });
+            ForwardJob job = ForwardJobCodecTest.sampleJob();
+            for (int i = 0; i < JOBS; i++) {
+                job.setChatIdTo(i % DESTINATIONS);
+                job.setMessageId(i);
+                queue.send(job);
+            }
+            assertTrue(done.await(1, TimeUnit.MINUTES));
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        assertEquals(DESTINATIONS, received.size());
+        received.forEach((chatId, messages) -> {
+            assertEquals(JOBS / DESTINATIONS, messages.size());
+            for (int i = 1; i < messages.size(); i++) {
+                assertTrue(messages.get(i - 1) < messages.get(i));
+            }
+        });
+        assertTrue("jobs were processed by " + threads, threads.size() > 1);
+    }
+}
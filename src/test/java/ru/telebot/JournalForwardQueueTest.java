@@ -0,0 +1,226 @@
+package ru.telebot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.telebot.domain.ForwardJob;
+import ru.telebot.queue.JournalForwardQueue;
+
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JournalForwardQueueTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private JournalForwardQueue open() throws BotException {
+        return new JournalForwardQueue(directory, 2, SEGMENT_SIZE, JournalForwardQueue.FsyncPolicy.NEVER, 60000, 10);
+    }
+
+    private static ForwardJob job(long chatIdTo, long messageId) {
+        ForwardJob job = ForwardJobCodecTest.sampleJob();
+        job.setChatIdTo(chatIdTo);
+        job.setMessageId(messageId);
+        return job;
+    }
+
+    @Test
+    public void jobsForDestinationAreDeliveredInOrder() throws Exception {
+        BlockingQueue<ForwardJob> received = new LinkedBlockingQueue<>();
+        try (JournalForwardQueue queue = open()) {
+            queue.subscribe(job -> {
+                received.add(job);
+                return CompletableFuture.completedFuture(null);
+            });
+            // jobs do not fit into one segment
+            for (int i = 0; i < 100; i++) {
+                queue.send(job(100 + i % 3, i));
+            }
+            List<Long> messages = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                ForwardJob job = received.poll(10, TimeUnit.SECONDS);
+                if (job.getChatIdTo() == 101) {
+                    messages.add(job.getMessageId());
+                }
+            }
+            List<Long> sorted = new ArrayList<>(messages);
+            Collections.sort(sorted);
+            assertEquals(33, messages.size());
+            assertEquals(sorted, messages);
+        }
+    }
+
+    @Test
+    public void onlyUnacknowledgedJobsAreDeliveredAfterRestart() throws Exception {
+        try (JournalForwardQueue queue = open()) {
+            for (int i = 0; i < 50; i++) {
+                queue.send(job(100, i));
+            }
+        }
+
+        BlockingQueue<ForwardJob> received = new LinkedBlockingQueue<>();
+        try (JournalForwardQueue queue = open()) {
+            queue.subscribe(job -> {
+                received.add(job);
+                // jobs from 30 are still in progress when queue is closed
+                return job.getMessageId() < 30 ? CompletableFuture.completedFuture(null) : new CompletableFuture<>();
+            });
+            for (int i = 0; i < 30; i++) {
+                assertEquals(i, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            }
+        }
+
+        received.clear();
+        try (JournalForwardQueue queue = open()) {
+            queue.subscribe(job -> {
+                received.add(job);
+                return CompletableFuture.completedFuture(null);
+            });
+            for (int i = 30; i < 50; i++) {
+                assertEquals(i, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            }
+            assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals(0, queue.getBacklog());
+        }
+        // everything is acknowledged, only segments in use are kept
+        assertEquals(1, countSegments(directory.resolve("p0")));
+    }
+
+    @Test
+    public void jobsInProgressAreDeliveredAgainAfterResubscribe() throws Exception {
+        BlockingQueue<ForwardJob> received = new LinkedBlockingQueue<>();
+        try (JournalForwardQueue queue = open()) {
+            // destinations of one partition, so the jobs are read in order and sent concurrently
+            for (int i = 0; i < 10; i++) {
+                queue.send(job(100 + 2 * i, i));
+            }
+            queue.subscribe(job -> {
+                received.add(job);
+                return job.getMessageId() < 5 ? CompletableFuture.completedFuture(null) : new CompletableFuture<>();
+            });
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            }
+            queue.unsubscribe();
+
+            received.clear();
+            queue.subscribe(job -> {
+                received.add(job);
+                return CompletableFuture.completedFuture(null);
+            });
+            for (int i = 5; i < 10; i++) {
+                assertEquals(i, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            }
+            assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void nextJobOfDestinationWaitsForSendInProgress() throws Exception {
+        BlockingQueue<ForwardJob> received = new LinkedBlockingQueue<>();
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        try (JournalForwardQueue queue = open()) {
+            queue.send(job(100, 1));
+            queue.send(job(100, 2));
+            queue.send(job(102, 3));
+            queue.subscribe(job -> {
+                received.add(job);
+                return job.getMessageId() == 1 ? first : CompletableFuture.completedFuture(null);
+            });
+            assertEquals(1, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            // other destination is not held back
+            assertEquals(3, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+
+            first.complete(null);
+            assertEquals(2, received.poll(10, TimeUnit.SECONDS).getMessageId());
+        }
+    }
+
+    @Test
+    public void failedJobIsRedeliveredBeforeNextJobOfDestination() throws Exception {
+        BlockingQueue<ForwardJob> received = new LinkedBlockingQueue<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        try (JournalForwardQueue queue = open()) {
+            queue.send(job(100, 1));
+            queue.send(job(100, 2));
+            queue.subscribe(job -> {
+                received.add(job);
+                CompletableFuture<Void> result = new CompletableFuture<>();
+                if (job.getMessageId() == 1 && failed.compareAndSet(false, true)) {
+                    result.completeExceptionally(new BotException("flood wait"));
+                } else {
+                    result.complete(null);
+                }
+                return result;
+            });
+            for (long expected : new long[]{1, 1, 2}) {
+                assertEquals(expected, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            }
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        try (JournalForwardQueue queue = open()) {
+            queue.send(job(100, 1));
+            queue.send(job(100, 2));
+        }
+        Path segment;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.resolve("p0"), "*.seg")) {
+            segment = files.iterator().next();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // second record is written partially
+            int first = file.readInt();
+            file.seek(8 + first + 8 + 10);
+            file.writeLong(-1);
+        }
+
+        BlockingQueue<ForwardJob> received = new LinkedBlockingQueue<>();
+        try (JournalForwardQueue queue = open()) {
+            queue.subscribe(job -> {
+                received.add(job);
+                return CompletableFuture.completedFuture(null);
+            });
+            queue.send(job(100, 3));
+            assertEquals(1, received.poll(10, TimeUnit.SECONDS).getMessageId());
+            assertEquals(3, received.poll(10, TimeUnit.SECONDS).getMessageId());
+        }
+    }
+
+    private static long countSegments(Path partition) throws Exception {
+        try (Stream<Path> files = Files.list(partition)) {
+            return files.filter(path -> path.toString().endsWith(".seg")).count();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ru.telebot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LifecycleTest {
+
+    @Test
+    public void listenersSeeEveryChange() throws Exception {
+        Lifecycle lifecycle = new Lifecycle();
+        List<String> changes = new ArrayList<>();
+        lifecycle.addListener((from, to) -> changes.add(from + "->" + to));
+
+        assertTrue(lifecycle.moveTo(Lifecycle.State.WORKERS_AUTHORIZING));
+        // owner is not ready yet
+        assertFalse(lifecycle.moveTo(Lifecycle.State.READY, Lifecycle.State.WORKERS_AUTHORIZING));
+        assertTrue(lifecycle.moveTo(Lifecycle.State.WORKERS_AUTHORIZING, Lifecycle.State.READY));
+        assertFalse(lifecycle.moveTo(Lifecycle.State.READY));
+        assertTrue(lifecycle.moveTo(Lifecycle.State.DRAINING));
+        // no way back from draining
+        assertFalse(lifecycle.moveTo(Lifecycle.State.READY));
+        assertTrue(lifecycle.moveTo(Lifecycle.State.STOPPED));
+        lifecycle.awaitStopped();
+
+        assertEquals(Lifecycle.State.STOPPED, lifecycle.getState());
+        assertEquals("[STARTING->WORKERS_AUTHORIZING, WORKERS_AUTHORIZING->READY, READY->DRAINING, DRAINING->STOPPED]",
+                changes.toString());
+    }
+}
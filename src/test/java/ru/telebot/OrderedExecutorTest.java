@@ -0,0 +1,59 @@
+package ru.telebot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedExecutorTest {
+
+    @Test
+    public void keepsOrderForSameKey() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("test-ordered", 4, 10, OrderedExecutor.Backpressure.BLOCK);
+        List<List<Integer>> results = new ArrayList<>();
+        for (int key = 0; key < 8; key++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            final int key = i % 8;
+            final int value = i;
+            executor.execute(key, () -> results.get(key).add(value));
+        }
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        for (int key = 0; key < 8; key++) {
+            List<Integer> values = results.get(key);
+            assertEquals(125, values.size());
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue(values.get(i - 1) < values.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor("test-drop", 1, 1, OrderedExecutor.Backpressure.DROP);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(1, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // lane thread is busy, one task fits to the queue and the next one is dropped
+        executor.execute(1, () -> { });
+        executor.execute(1, () -> { });
+        release.countDown();
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(1, Metrics.counter("test-drop.dropped").sum());
+    }
+}
@@ -0,0 +1,119 @@
+package ru.telebot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void jobWaitsOnlyForItsDestination() {
+        RateLimiter limiter = new RateLimiter(0, 1, 0, 1, 1, 1);
+        assertEquals(0, limiter.reserve(Collections.singletonList("a"), 1, 0).getDelayNanos());
+        assertEquals(SECOND, limiter.reserve(Collections.singletonList("a"), 1, 0).getDelayNanos());
+        // other destination is not delayed by the first one
+        assertEquals(0, limiter.reserve(Collections.singletonList("a"), 2, 0).getDelayNanos());
+        assertEquals(2 * SECOND, limiter.reserve(Collections.singletonList("a"), 1, 0).getDelayNanos());
+    }
+
+    @Test
+    public void freeAccountIsSelected() {
+        RateLimiter limiter = new RateLimiter(0, 1, 1, 1, 0, 1);
+        RateLimiter.Reservation first = limiter.reserve(Arrays.asList("a", "b"), 1, 0);
+        RateLimiter.Reservation second = limiter.reserve(Arrays.asList("a", "b"), 2, 0);
+        RateLimiter.Reservation third = limiter.reserve(Arrays.asList("a", "b"), 3, 0);
+        assertEquals("a", first.getAccount());
+        assertEquals(0, first.getDelayNanos());
+        assertEquals("b", second.getAccount());
+        assertEquals(0, second.getDelayNanos());
+        // both accounts are busy, two accounts give twice the rate of one
+        assertEquals(SECOND, third.getDelayNanos());
+    }
+
+    @Test
+    public void globalLimitAndBurst() {
+        RateLimiter limiter = new RateLimiter(2, 2, 0, 1, 0, 1);
+        assertEquals(0, limiter.reserve(Collections.singletonList("a"), 1, 0).getDelayNanos());
+        assertEquals(0, limiter.reserve(Collections.singletonList("b"), 2, 0).getDelayNanos());
+        assertEquals(SECOND / 2, limiter.reserve(Collections.singletonList("c"), 3, 0).getDelayNanos());
+        // tokens are refilled over time
+        assertEquals(0, limiter.reserve(Collections.singletonList("c"), 4, 2 * SECOND).getDelayNanos());
+    }
+
+    @Test
+    public void coolingAccountIsSkipped() {
+        RateLimiter limiter = new RateLimiter(0, 1, 1, 1, 0, 1);
+        limiter.cooldownUntil("a", 30 * SECOND);
+        RateLimiter.Reservation first = limiter.reserve(Arrays.asList("a", "b"), 1, 0);
+        assertEquals("b", first.getAccount());
+        assertEquals(0, first.getDelayNanos());
+        // b is busy for a second, it is still better than waiting for a
+        RateLimiter.Reservation second = limiter.reserve(Arrays.asList("a", "b"), 1, 0);
+        assertEquals("b", second.getAccount());
+        assertEquals(SECOND, second.getDelayNanos());
+        assertEquals(30 * SECOND, limiter.reserve(Collections.singletonList("a"), 1, 0).getDelayNanos());
+    }
+
+    @Test
+    public void preferredAccountIsTakenWhenItHasToken() {
+        RateLimiter limiter = new RateLimiter(0, 1, 1, 2, 0, 1);
+        limiter.reserve(Collections.singletonList("a"), 1, 0);
+        // a has one token of its burst left, b has both, the order of candidates decides
+        assertEquals("a", limiter.reserve(Arrays.asList("a", "b"), 2, 0).getAccount());
+        // a has no token now, the account which has one is taken
+        RateLimiter.Reservation fallback = limiter.reserve(Arrays.asList("a", "b"), 3, 0);
+        assertEquals("b", fallback.getAccount());
+        assertEquals(0, fallback.getDelayNanos());
+    }
+
+    @Test
+    public void concurrentReservationsGetDistinctSlots() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 1, 0, 1, 1, 1);
+        int threads = 8;
+        int perThread = 1000;
+        Set<Long> delays = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    delays.add(limiter.reserve(Collections.singletonList("a"), 1, 0).getDelayNanos());
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // every send to the destination got its own second
+        assertEquals(threads * perThread, delays.size());
+        for (long delay : delays) {
+            assertEquals(0, delay % SECOND);
+        }
+    }
+
+    @Test
+    public void retryAfterIsParsed() {
+        assertEquals(30, RateLimiter.parseRetryAfter(429, "Too Many Requests: retry after 30"));
+        assertEquals(15, RateLimiter.parseRetryAfter(420, "FLOOD_WAIT_15"));
+        assertEquals(1, RateLimiter.parseRetryAfter(429, "Too Many Requests"));
+        assertEquals(-1, RateLimiter.parseRetryAfter(400, "Bad Request: chat not found"));
+    }
+}
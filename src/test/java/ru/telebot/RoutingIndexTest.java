@@ -0,0 +1,50 @@
+package ru.telebot;
+
+import org.junit.Test;
+import ru.telebot.domain.Chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingIndexTest {
+
+    @Test
+    public void findsRoutesByOwnerAndSource() {
+        RoutingIndex index = new RoutingIndex();
+        List<Chat> routes = new ArrayList<>();
+        for (long source = 1; source <= 100; source++) {
+            routes.add(link("111", -1000000000000L - source, 10));
+            routes.add(link("111", -1000000000000L - source, 20));
+        }
+        routes.add(link("222", -1000000000001L, 30));
+        index.update(routes);
+
+        assertEquals(201, index.size());
+        for (long source = 1; source <= 100; source++) {
+            assertTrue(index.isSource("111", -1000000000000L - source));
+            assertEquals(2, index.getRoutes("111", -1000000000000L - source).length);
+        }
+        assertFalse(index.isSource("111", 5));
+        assertFalse(index.isSource("333", -1000000000001L));
+        assertEquals(0, index.getRoutes("111", 0).length);
+        assertEquals(30, index.getRoutes("222", -1000000000001L)[0].getChatIdTo());
+
+        index.update(Arrays.asList(link("222", 7, 40)));
+        assertFalse(index.isSource("111", -1000000000001L));
+        assertTrue(index.isSource("222", 7));
+    }
+
+    private static Chat link(String owner, long from, long to) {
+        Chat chat = new Chat();
+        chat.setOwner(owner);
+        chat.setChatIdFrom(from);
+        chat.setChatIdTo(to);
+        chat.setName("source -> destination");
+        return chat;
+    }
+}
@@ -0,0 +1,118 @@
+package ru.telebot;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.telebot.dao.DbHelper;
+import ru.telebot.domain.Session;
+import ru.telebot.domain.State;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SessionStoreTest {
+
+    private File dbFile;
+    private HikariDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = File.createTempFile("session", ".sqlite");
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        dataSource.setAutoCommit(false);
+        dataSource.setMaximumPoolSize(2);
+        try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+            st.executeUpdate("CREATE TABLE user_session(client_id BIGINT not null PRIMARY KEY, phone VARCHAR (30), " +
+                    "auth_state VARCHAR(30), current_action VARCHAR(100), first_param VARCHAR(100))");
+            st.executeUpdate("insert into user_session values (1, '79000000001', 'AUTHORIZED', '', '')");
+            connection.commit();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void savesOfOneCommandAreWrittenOnce() throws Exception {
+        SessionStore store = new SessionStore(dataSource);
+        store.load();
+        assertEquals(State.AUTHORIZED, store.getByPhone("79000000001").getAuthState());
+        assertEquals(State.LOGIN, store.getByClientId(2).getAuthState());
+
+        long writes = Metrics.counter("session.writes").sum();
+        store.command(() -> {
+            Session session = store.getByClientId(1);
+            session.setCurrentAction("create_source");
+            store.save(session);
+            session.setCurrentAction("create_destination");
+            session.setFirstParam("100");
+            store.save(session);
+            // saved session is seen before it is written
+            assertEquals("create_destination", store.getByPhone("79000000001").getCurrentAction());
+        });
+        assertEquals(writes + 1, Metrics.counter("session.writes").sum());
+
+        Session stored = DbHelper.getSessions(dataSource).get(0);
+        assertEquals("create_destination", stored.getCurrentAction());
+        assertEquals("100", stored.getFirstParam());
+    }
+
+    @Test
+    public void newSessionIsInsertedAndPhoneIndexFollowsChanges() throws Exception {
+        SessionStore store = new SessionStore(dataSource);
+        store.load();
+        Session session = store.getByClientId(2);
+        session.setPhone("79000000002");
+        store.save(session);
+        session.setPhone("79000000003");
+        store.save(session);
+
+        assertNull(store.getByPhone("79000000002"));
+        assertEquals(Long.valueOf(2), store.getByPhone("79000000003").getClientId());
+        store.load();
+        List<Session> sessions = store.getSessions();
+        assertEquals(2, sessions.size());
+        assertEquals(Long.valueOf(2), store.getByPhone("79000000003").getClientId());
+    }
+
+    @Test
+    public void failedWriteDoesNotChangeCacheAndOtherSessionsAreWritten() throws Exception {
+        SessionStore store = new SessionStore(dataSource);
+        store.load();
+        try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+            st.executeUpdate("CREATE TRIGGER fail_update BEFORE UPDATE ON user_session WHEN NEW.client_id = 1 " +
+                    "BEGIN SELECT RAISE(ABORT, 'write failed'); END");
+            connection.commit();
+        }
+
+        try {
+            store.command(() -> {
+                Session first = store.getByClientId(1);
+                first.setCurrentAction("login");
+                store.save(first);
+                Session second = store.getByClientId(2);
+                second.setPhone("79000000002");
+                store.save(second);
+            });
+            fail("write of the first session fails");
+        } catch (SQLException expected) {
+            // session 2 is written anyway
+        }
+
+        assertEquals("", store.getByClientId(1).getCurrentAction());
+        assertEquals(Long.valueOf(2), store.getByPhone("79000000002").getClientId());
+        assertEquals(2, DbHelper.getSessions(dataSource).size());
+    }
+}
@@ -0,0 +1,42 @@
+package ru.telebot;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShutdownCoordinatorTest {
+
+    @Test
+    public void sessionsCloseInParallelAndHungOneIsReported() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        Map<String, Long> sessions = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            sessions.put("7900000000" + i, 300L);
+        }
+        sessions.put("hung", -1L);
+
+        long started = System.nanoTime();
+        ShutdownCoordinator shutdown = new ShutdownCoordinator(1, TimeUnit.SECONDS);
+        List<String> notClosed = shutdown.closeAll(sessions, (millis, timeoutNanos) -> {
+            if (millis < 0) {
+                return never.await(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            TimeUnit.MILLISECONDS.sleep(millis);
+            return true;
+        });
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals(Collections.singletonList("hung"), notClosed);
+        // ten sessions of 300 ms one after another would take 3 seconds
+        assertTrue("took " + elapsed + " ms", elapsed < 2000);
+        assertEquals(0, shutdown.remainingNanos());
+    }
+}
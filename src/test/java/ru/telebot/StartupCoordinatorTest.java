@@ -0,0 +1,72 @@
+package ru.telebot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StartupCoordinatorTest {
+
+    @Test
+    public void accountsAreOpenedUpToParallelismAndReadyOnesFreeSlots() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            StartupCoordinator startup = new StartupCoordinator(2, 1, TimeUnit.MINUTES, scheduler);
+            List<String> opened = new CopyOnWriteArrayList<>();
+            startup.start(Arrays.asList("owner", "a", "b", "c"), opened::add);
+
+            waitFor(() -> opened.size() == 2);
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertEquals(Arrays.asList("owner", "a"), opened);
+            assertEquals(2, startup.getLoading());
+
+            startup.ready("owner");
+            waitFor(() -> opened.size() == 3);
+            startup.failed("a");
+            waitFor(() -> opened.size() == 4);
+            assertEquals(Arrays.asList("owner", "a", "b", "c"), opened);
+
+            assertEquals(-1, startup.getFirstForwardMillis());
+            startup.forwarded();
+            long first = startup.getFirstForwardMillis();
+            assertTrue(first >= 0);
+            startup.forwarded();
+            assertEquals(first, startup.getFirstForwardMillis());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void slowAccountDoesNotHoldOthersAfterTimeout() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            StartupCoordinator startup = new StartupCoordinator(1, 200, TimeUnit.MILLISECONDS, scheduler);
+            List<String> opened = new CopyOnWriteArrayList<>();
+            startup.start(Arrays.asList("slow", "next"), opened::add).join(TimeUnit.SECONDS.toMillis(5));
+
+            assertEquals(Arrays.asList("slow", "next"), opened);
+            // ready after the timeout does not release the slot twice
+            startup.ready("slow");
+            assertEquals(1, startup.getLoading());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
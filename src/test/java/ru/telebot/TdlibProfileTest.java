@@ -0,0 +1,33 @@
+package ru.telebot;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TdlibProfileTest {
+
+    @Test
+    public void relayKeepsNoMessagesAndTrimsStorage() {
+        // relay is opt-in, existing deployments keep their message database
+        assertEquals(TdlibProfile.FULL, TdlibProfile.parse(null));
+        assertEquals(TdlibProfile.RELAY, TdlibProfile.parse(" relay"));
+
+        TdApi.TdlibParameters relay = TdlibProfile.RELAY.parameters("tdlib/79000000000");
+        assertEquals("tdlib/79000000000", relay.databaseDirectory);
+        assertFalse(relay.useMessageDatabase);
+        assertFalse(relay.useSecretChats);
+        assertTrue(relay.useChatInfoDatabase);
+        TdApi.OptimizeStorage optimize = TdlibProfile.RELAY.optimizeStorage(100L * 1024 * 1024, 86400);
+        assertEquals(100L * 1024 * 1024, optimize.size);
+        assertEquals(86400, optimize.ttl);
+
+        TdApi.TdlibParameters full = TdlibProfile.FULL.parameters("tdlib/BOT");
+        assertTrue(full.useMessageDatabase);
+        assertTrue(full.useSecretChats);
+        assertNull(TdlibProfile.FULL.optimizeStorage(100L * 1024 * 1024, 86400));
+    }
+}
@@ -0,0 +1,80 @@
+package ru.telebot;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WindowedAggregatorTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<List<Integer>> emitted = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void groupIsEmittedAfterWindow() throws Exception {
+        WindowedAggregator<String, Integer> aggregator = new WindowedAggregator<>(scheduler, 50, 10, (key, values) -> emitted.add(values));
+        aggregator.add("a", 1);
+        aggregator.add("b", 10);
+        aggregator.add("a", 2);
+        assertTrue(emitted.isEmpty());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (emitted.size() < 2 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(2, emitted.size());
+        assertTrue(emitted.contains(Arrays.asList(1, 2)));
+        assertTrue(emitted.contains(Arrays.asList(10)));
+        assertEquals(0, aggregator.getPending());
+    }
+
+    @Test
+    public void fullGroupAndFlushAreEmittedAtOnce() {
+        WindowedAggregator<String, Integer> aggregator = new WindowedAggregator<>(scheduler, 60000, 3, (key, values) -> emitted.add(values));
+        aggregator.add("a", 1);
+        aggregator.add("a", 2);
+        aggregator.add("a", 3);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2, 3)), emitted);
+
+        aggregator.add("a:1", 4);
+        aggregator.add("b:1", 5);
+        aggregator.flushIf(key -> key.startsWith("a:"));
+        assertEquals(Arrays.asList(4), emitted.get(1));
+        assertEquals(1, aggregator.getPending());
+        aggregator.flushAll();
+        assertEquals(Arrays.asList(5), emitted.get(2));
+    }
+
+    @Test
+    public void expiredGroupIsFlushedByFlusherOnlyOnce() throws Exception {
+        BlockingQueue<Runnable> flushes = new LinkedBlockingQueue<>();
+        WindowedAggregator<String, Integer> aggregator = new WindowedAggregator<>(scheduler, 50, 10,
+                (key, flush) -> flushes.add(flush), (key, values) -> emitted.add(values));
+        aggregator.add("a", 1);
+        Runnable flush = flushes.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, aggregator.getPending());
+        assertTrue(emitted.isEmpty());
+
+        // next message flushed the group before the timer flush got the lock
+        aggregator.flushAll();
+        aggregator.add("a", 2);
+        flush.run();
+        assertEquals(Arrays.asList(Arrays.asList(1)), emitted);
+        assertEquals(1, aggregator.getPending());
+    }
+}
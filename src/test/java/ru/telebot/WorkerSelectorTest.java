@@ -0,0 +1,56 @@
+package ru.telebot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerSelectorTest {
+
+    @Test
+    public void lessLoadedAccountGoesFirst() {
+        WorkerSelector selector = ready("a", "b");
+        for (int i = 0; i < 5; i++) {
+            selector.started("a");
+        }
+        // with two accounts both are always compared
+        for (int i = 0; i < 100; i++) {
+            assertEquals("b", selector.candidates(Arrays.asList("a", "b")).get(0));
+        }
+        assertEquals(5, selector.getInFlight("a"));
+    }
+
+    @Test
+    public void failingAccountIsLeftOut() {
+        WorkerSelector selector = ready("a", "b", "c");
+        for (int i = 0; i < 5; i++) {
+            selector.completed("a", selector.started("a"), true);
+            selector.completed("b", selector.started("b"), false);
+        }
+        List<String> candidates = selector.candidates(Arrays.asList("a", "b", "c"));
+        assertEquals(2, candidates.size());
+        assertEquals(0, selector.getInFlight("a"));
+        // when no account is healthy all of them are used
+        assertEquals(1, selector.candidates(Arrays.asList("a")).size());
+    }
+
+    @Test
+    public void accountWhichIsNotReadyIsLeftOut() {
+        WorkerSelector selector = ready("a", "b");
+        selector.notReady("a");
+        assertEquals(Arrays.asList("b"), selector.candidates(Arrays.asList("a", "b", "c")));
+        selector.notReady("b");
+        assertTrue(selector.candidates(Arrays.asList("a", "b")).isEmpty());
+    }
+
+    private static WorkerSelector ready(String... accounts) {
+        WorkerSelector selector = new WorkerSelector();
+        for (String account : accounts) {
+            selector.ready(account);
+        }
+        return selector;
+    }
+}